@@ -38,6 +38,8 @@ public final class Coff {
             throw new EOFException();
         }
 
+        file.mapForLoading();
+
         Lib.strictReadFile(file, 0, headers, 0, headers.length);
 
         magic = Lib.bytesToUnsignedShort(headers, 0);
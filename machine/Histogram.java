@@ -0,0 +1,234 @@
+package nachos.machine;
+
+/**
+ * A histogram of non-negative <tt>long</tt> samples, such as latencies
+ * measured in clock ticks. Samples are counted in logarithmic buckets: each
+ * power of two is split into <tt>subBuckets</tt> linear sub-buckets, so the
+ * relative error of any reported value is bounded no matter how large the
+ * samples get, while recording a sample takes constant time and no
+ * allocation.
+ * <p/>
+ * <p/>
+ * A histogram is not synchronized. Callers that share one between threads
+ * must record into it with interrupts disabled.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     *
+     * @param    name    the name printed by <tt>print()</tt>.
+     */
+    public Histogram(String name) {
+        this.name = name;
+        counts = new long[numBuckets];
+    }
+
+    /**
+     * Return the name of this histogram.
+     *
+     * @return the name of this histogram.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add a sample to this histogram.
+     *
+     * @param    value    the sample to add. Must not be negative.
+     */
+    public void record(long value) {
+        assert (value >= 0);
+
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Remove all samples from this histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < numBuckets; i++)
+            counts[i] = 0;
+
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Return the number of samples recorded.
+     *
+     * @return the number of samples recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the sum of all samples recorded.
+     *
+     * @return the sum of all samples recorded.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Return the smallest sample recorded, or 0 if the histogram is empty.
+     *
+     * @return the smallest sample recorded.
+     */
+    public long getMin() {
+        return (count == 0) ? 0 : min;
+    }
+
+    /**
+     * Return the largest sample recorded, or 0 if the histogram is empty.
+     *
+     * @return the largest sample recorded.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Return the mean of all samples recorded, or 0 if the histogram is
+     * empty.
+     *
+     * @return the mean of all samples recorded.
+     */
+    public double getMean() {
+        return (count == 0) ? 0.0 : (double) total / count;
+    }
+
+    /**
+     * Return an upper bound on the specified percentile of the recorded
+     * samples. The value returned is the largest value that falls in the same
+     * bucket as the percentile, clamped to the largest sample recorded.
+     *
+     * @param    percentile    the percentile, between 0.0 and 100.0.
+     * @return an upper bound on the percentile, or 0 if the histogram is
+     * empty.
+     */
+    public long getPercentile(double percentile) {
+        assert (percentile >= 0.0 && percentile <= 100.0);
+
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < numBuckets; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(bucketHigh(i), max);
+        }
+
+        return max;
+    }
+
+    /**
+     * Return the number of samples in the specified bucket.
+     *
+     * @param    bucket    the bucket, between <tt>0</tt> and
+     * <tt>getNumBuckets() - 1</tt>.
+     * @return the number of samples in the bucket.
+     */
+    public long getBucketCount(int bucket) {
+        assert (bucket >= 0 && bucket < numBuckets);
+
+        return counts[bucket];
+    }
+
+    /**
+     * Return the number of buckets in every histogram.
+     *
+     * @return the number of buckets.
+     */
+    public static int getNumBuckets() {
+        return numBuckets;
+    }
+
+    /**
+     * Return the smallest value counted in the specified bucket.
+     *
+     * @param    bucket    the bucket.
+     * @return the smallest value counted in the bucket.
+     */
+    public static long bucketLow(int bucket) {
+        assert (bucket >= 0 && bucket < numBuckets);
+
+        if (bucket < subBuckets)
+            return bucket;
+
+        int shift = (bucket - subBuckets) / subBuckets;
+        int sub = (bucket - subBuckets) % subBuckets;
+
+        return (long) (subBuckets + sub) << shift;
+    }
+
+    /**
+     * Return the largest value counted in the specified bucket.
+     *
+     * @param    bucket    the bucket.
+     * @return the largest value counted in the bucket.
+     */
+    public static long bucketHigh(int bucket) {
+        if (bucket == numBuckets - 1)
+            return Long.MAX_VALUE;
+
+        return bucketLow(bucket + 1) - 1;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < subBuckets)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int sub = (int) (value >>> shift) - subBuckets;
+
+        return subBuckets + shift * subBuckets + sub;
+    }
+
+    /**
+     * Print a one-line summary of this histogram, followed by the count of
+     * every non-empty bucket.
+     */
+    public void print() {
+        System.out.println(name + ": count " + count
+                + ", mean " + (long) getMean()
+                + ", p50 " + getPercentile(50.0)
+                + ", p90 " + getPercentile(90.0)
+                + ", p99 " + getPercentile(99.0)
+                + ", max " + getMax());
+
+        for (int i = 0; i < numBuckets; i++) {
+            if (counts[i] != 0)
+                System.out.println("  [" + bucketLow(i) + ", " +
+                        bucketHigh(i) + "] " + counts[i]);
+        }
+    }
+
+    private String name;
+    private long[] counts;
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    private static final int subBucketBits = 2;
+    private static final int subBuckets = 1 << subBucketBits;
+    private static final int numBuckets =
+            subBuckets + (63 - subBucketBits) * subBuckets;
+}
@@ -53,6 +53,13 @@ public final class Interrupt {
 
         enabled = false;
         pending = new TreeSet();
+
+        String profile = Config.getString("Interrupt.profile");
+        if (profile != null && Config.getBoolean("Interrupt.profile")) {
+            String stacks = Config.getString("Interrupt.profileStacks");
+            profiler = new InterruptProfiler(privilege.stats,
+                    stacks != null && Config.getBoolean("Interrupt.profileStacks"));
+        }
     }
 
     /**
@@ -93,6 +100,14 @@ public final class Interrupt {
      */
     public boolean setStatus(boolean status) {
         boolean oldStatus = enabled;
+
+        if (profiler != null && oldStatus != status) {
+            if (status)
+                profiler.enabled();
+            else
+                profiler.disabled();
+        }
+
         enabled = status;
 
         if (oldStatus == false && status == true)
@@ -101,6 +116,16 @@ public final class Interrupt {
         return oldStatus;
     }
 
+    /**
+     * Return the profiler measuring how long interrupts stay disabled.
+     *
+     * @return the profiler, or <tt>null</tt> if profiling is not enabled.
+     * @see    nachos.machine.InterruptProfiler
+     */
+    public InterruptProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -236,6 +261,7 @@ public final class Interrupt {
 
     private boolean enabled;
     private TreeSet pending;
+    private InterruptProfiler profiler = null;
 
     private static final char dbgInt = 'i';
 
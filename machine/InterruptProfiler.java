@@ -0,0 +1,204 @@
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Measures how long interrupts stay disabled. Enabled by setting
+ * <tt>Interrupt.profile</tt> to <tt>true</tt> in <tt>nachos.conf</tt>.
+ * <p/>
+ * <p/>
+ * A <i>section</i> starts when interrupts go from enabled to disabled, and
+ * ends when they are enabled again, possibly in another thread after a
+ * context switch. Each section is timed in simulated ticks and in host
+ * nanoseconds. Simulated time only advances while interrupts are enabled or
+ * user code is running, so host time is usually the more useful measure.
+ * <p/>
+ * <p/>
+ * If <tt>Interrupt.profileStacks</tt> is also <tt>true</tt>, each section is
+ * also charged to the method that disabled interrupts, and the full stack of
+ * the longest section of each method is kept and printed for the worst
+ * offenders. Finding the method means walking the stack on every disable,
+ * which costs far more than the sections being measured, so it is left off
+ * by default. The results are printed by <tt>Stats.print()</tt>.
+ */
+public final class InterruptProfiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param    stats    the statistics holding the simulated time.
+     * @param    captureStacks    <tt>true</tt> to charge sections to methods
+     * and keep the stack of the longest section of each method.
+     */
+    InterruptProfiler(Stats stats, boolean captureStacks) {
+        this.stats = stats;
+        this.captureStacks = captureStacks;
+
+        ticks = new Histogram("  ticks");
+        nanos = new Histogram("  nanoseconds");
+
+        Stats.addReporter(new Runnable() {
+            public void run() {
+                print();
+            }
+        });
+    }
+
+    /**
+     * Note that interrupts have just been disabled.
+     */
+    void disabled() {
+        inSection = true;
+        startTicks = stats.totalTicks;
+        startNanos = System.nanoTime();
+
+        if (!captureStacks)
+            return;
+
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+
+        int caller = 0;
+        while (caller < trace.length - 1 &&
+                (trace[caller].getClassName().equals(Interrupt.class.getName()) ||
+                        trace[caller].getClassName().equals(
+                                InterruptProfiler.class.getName())))
+            caller++;
+
+        String name = trace[caller].getClassName() + "."
+                + trace[caller].getMethodName();
+        site = sites.get(name);
+        if (site == null) {
+            site = new Site(name);
+            sites.put(name, site);
+        }
+
+        stack = new StackTraceElement[trace.length - caller];
+        System.arraycopy(trace, caller, stack, 0, stack.length);
+
+        // don't charge the stack walk to the section
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Note that interrupts are about to be enabled.
+     */
+    void enabled() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long elapsedTicks = stats.totalTicks - startTicks;
+
+        // interrupts start out disabled, before any section is started
+        if (!inSection)
+            return;
+
+        inSection = false;
+        ticks.record(elapsedTicks);
+        nanos.record(elapsedNanos);
+
+        if (site == null)
+            return;
+
+        site.count++;
+        site.totalTicks += elapsedTicks;
+        site.totalNanos += elapsedNanos;
+        if (elapsedNanos > site.maxNanos) {
+            site.maxNanos = elapsedNanos;
+            site.worstStack = stack;
+        }
+
+        site = null;
+        stack = null;
+    }
+
+    /**
+     * Return the histogram of section lengths in simulated ticks.
+     *
+     * @return the tick histogram.
+     */
+    public Histogram getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Return the histogram of section lengths in host nanoseconds.
+     *
+     * @return the nanosecond histogram.
+     */
+    public Histogram getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Print the overall histograms, then, if stacks are captured, the methods
+     * that kept interrupts disabled longest in total.
+     */
+    public void print() {
+        System.out.println("Interrupts disabled: sections " + ticks.getCount()
+                + ", ticks " + ticks.getTotal()
+                + ", nanoseconds " + nanos.getTotal());
+        if (ticks.getCount() == 0)
+            return;
+
+        ticks.print();
+        nanos.print();
+
+        ArrayList<Site> sorted = new ArrayList<Site>(sites.values());
+        Collections.sort(sorted, new Comparator<Site>() {
+            public int compare(Site a, Site b) {
+                if (a.totalNanos != b.totalNanos)
+                    return (a.totalNanos > b.totalNanos) ? -1 : 1;
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        for (int i = 0; i < sorted.size() && i < numTopSites; i++) {
+            Site site = sorted.get(i);
+            System.out.println("  " + site.name + ": sections " + site.count
+                    + ", ticks " + site.totalTicks
+                    + ", nanoseconds " + site.totalNanos
+                    + ", max " + site.maxNanos);
+
+            if (site.worstStack != null && i < numTopStacks) {
+                for (int j = 0; j < site.worstStack.length; j++)
+                    System.out.println("    at " + site.worstStack[j]);
+            }
+        }
+    }
+
+    private static class Site {
+        Site(String name) {
+            this.name = name;
+        }
+
+        String name;
+        long count = 0;
+        long totalTicks = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        StackTraceElement[] worstStack = null;
+    }
+
+    /**
+     * The number of methods listed by <tt>print()</tt>.
+     */
+    public static final int numTopSites = 10;
+    /**
+     * The number of methods whose worst stack is printed by
+     * <tt>print()</tt>, when stacks are captured.
+     */
+    public static final int numTopStacks = 3;
+
+    private Stats stats;
+    private boolean captureStacks;
+
+    private boolean inSection = false;
+    private Site site = null;
+    private StackTraceElement[] stack = null;
+    private long startTicks;
+    private long startNanos;
+
+    private HashMap<String, Site> sites = new HashMap<String, Site>();
+    private Histogram ticks;
+    private Histogram nanos;
+}
@@ -52,6 +52,13 @@ public class OpenFile {
         return -1;
     }
 
+    /**
+     * Note that this file is about to be loaded as an executable, so that its
+     * headers and pages can be read more cheaply. Does nothing by default.
+     */
+    void mapForLoading() {
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
@@ -112,6 +112,33 @@ public final class Processor {
             registers[number] = value;
     }
 
+    /**
+     * Copy all the user registers into an array, in register number order.
+     * Has the same effect as calling <tt>readRegister()</tt> for each of them.
+     *
+     * @param    values    the array to store the registers in. Must have room
+     * for <tt>numUserRegisters</tt> values.
+     */
+    public void saveRegisters(int[] values) {
+        assert (values.length >= numUserRegisters);
+
+        System.arraycopy(registers, 0, values, 0, numUserRegisters);
+    }
+
+    /**
+     * Load all the user registers from an array, in register number order.
+     * Has the same effect as calling <tt>writeRegister()</tt> for each of
+     * them, so register 0 stays 0.
+     *
+     * @param    values    the values to load. Must hold
+     * <tt>numUserRegisters</tt> values.
+     */
+    public void restoreRegisters(int[] values) {
+        assert (values.length >= numUserRegisters);
+
+        System.arraycopy(values, 1, registers, 1, numUserRegisters - 1);
+    }
+
     /**
      * Test whether this processor uses a software-managed TLB, or single-level
      * paging.
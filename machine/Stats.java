@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.util.LinkedList;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -27,8 +29,25 @@ public final class Stats {
                 + ", TLB misses " + numTLBMisses);
         System.out.println("Network I/O: received " + numPacketsReceived
                 + ", sent " + numPacketsSent);
+
+        for (Runnable reporter : reporters)
+            reporter.run();
     }
 
+    /**
+     * Register a callback that prints additional statistics. Kernels use this
+     * to report their own measurements (for example, scheduling latency)
+     * after the machine statistics when <tt>print()</tt> is called.
+     *
+     * @param    reporter    the callback to run from <tt>print()</tt>.
+     */
+    public static void addReporter(Runnable reporter) {
+        reporters.add(reporter);
+    }
+
+    private static LinkedList<Runnable> reporters =
+            new LinkedList<Runnable>();
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -8,10 +8,24 @@ import nachos.threads.ThreadedKernel;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ * <p/>
+ * <p/>
+ * A file loaded as an executable by <tt>Coff</tt> is mapped read-only, once,
+ * so its section headers and pages are each a single copy out of the mapping
+ * instead of a seek and a read on the host file. Other files are read and
+ * written through the host file only. A write to a mapped file sends later
+ * reads of the bytes written to the host file, leaving the rest of the
+ * mapping in use, and closing the file releases the mapping. Every operation
+ * still takes the same simulated time.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -102,6 +116,14 @@ public class StubFileSystem implements FileSystem {
             try {
                 delay();
 
+                if (map != null && pos >= 0 && length <= map.limit() - pos &&
+                        (pos >= writtenEnd || pos + length <= writtenStart)) {
+                    ByteBuffer view = map.duplicate();
+                    view.position(pos);
+                    view.get(buf, offset, length);
+                    return length;
+                }
+
                 file.seek(pos);
                 return Math.max(0, file.read(buf, offset, length));
             } catch (IOException e) {
@@ -109,10 +131,59 @@ public class StubFileSystem implements FileSystem {
             }
         }
 
+        /**
+         * Map the whole file read-only, once, so that an executable's headers
+         * and pages are read with a copy out of the mapping. Leaves
+         * <tt>map</tt> <tt>null</tt> if the file cannot be mapped.
+         */
+        void mapForLoading() {
+            if (map != null)
+                return;
+
+            privilege.doPrivileged(new Runnable() {
+                public void run() {
+                    getMappedByteBuffer();
+                }
+            });
+        }
+
+        private void getMappedByteBuffer() {
+            try {
+                long size = file.length();
+                if (size > 0 && size <= Integer.MAX_VALUE)
+                    map = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            0, size);
+            } catch (IOException e) {
+            }
+        }
+
+        /**
+         * Release the mapping now, rather than when it is garbage collected,
+         * so that the host file can be removed once it is closed. If the
+         * host's cleaner cannot be reached, the mapping is left to the
+         * collector.
+         */
+        private void unmap() {
+            final MappedByteBuffer buffer = map;
+            map = null;
+
+            privilege.doPrivileged(new Runnable() {
+                public void run() {
+                    releaseMapping(buffer);
+                }
+            });
+        }
+
         public int write(int pos, byte[] buf, int offset, int length) {
             try {
                 delay();
 
+                // later reads of the written bytes bypass the mapping
+                if (map != null && length > 0) {
+                    writtenStart = Math.min(writtenStart, pos);
+                    writtenEnd = Math.max(writtenEnd, pos + length);
+                }
+
                 file.seek(pos);
                 file.write(buf, offset, length);
                 return length;
@@ -135,6 +206,9 @@ public class StubFileSystem implements FileSystem {
                 openCount--;
             }
 
+            if (map != null)
+                unmap();
+
             try {
                 file.close();
             } catch (IOException e) {
@@ -142,9 +216,37 @@ public class StubFileSystem implements FileSystem {
         }
 
         private RandomAccessFile file = null;
+        private MappedByteBuffer map = null;
+        private int writtenStart = Integer.MAX_VALUE, writtenEnd = 0;
         private boolean open = false;
     }
 
+    /**
+     * Unmap a buffer with the host's cleaner: <tt>Unsafe.invokeCleaner()</tt>
+     * from Java 9 on, or the buffer's own <tt>cleaner()</tt> before that.
+     * Must be called with privilege, and only once nothing reads the buffer.
+     */
+    private static void releaseMapping(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+                    .invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+        }
+
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null)
+                c.getClass().getMethod("clean").invoke(c);
+        } catch (Exception e) {
+        }
+    }
+
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
 
@@ -4,10 +4,10 @@ import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.MalformedPacketException;
 import nachos.machine.Packet;
-import nachos.threads.KThread;
+import nachos.threads.Channel;
 import nachos.threads.Lock;
 import nachos.threads.Semaphore;
-import nachos.threads.SynchList;
+import nachos.threads.ThreadedKernel;
 
 /**
  * A collection of message queues, one for each local port. A
@@ -16,25 +16,33 @@ import nachos.threads.SynchList;
  * corrupted, but they might get lost.
  * <p/>
  * <p/>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler only queues a delivery on the kernel's
+ * deferred work queue, and the delivery places the message in the appropriate
+ * queue later, in the deferred work thread. This cannot be done in the
+ * receive interrupt handler because each queue (implemented with a
+ * <tt>Channel</tt>) is protected by a lock.
+ * <p/>
+ * <p/>
+ * Each mailbox holds at most <tt>mailboxCapacity</tt> messages. A message
+ * arriving for a full mailbox is held back until its receiver makes room, and
+ * no further packets are taken from the network link meanwhile, so a slow
+ * receiver slows its senders down instead of losing their messages.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using an array of <tt>Channel</tt>s.
+     * Register the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-        messageReceived = new Semaphore(0);
         messageSent = new Semaphore(0);
         sendLock = new Lock();
 
-        queues = new SynchList[MailMessage.portLimit];
+        @SuppressWarnings("unchecked")
+        Channel<MailMessage>[] queues =
+                (Channel<MailMessage>[]) new Channel<?>[MailMessage.portLimit];
+        this.queues = queues;
         for (int i = 0; i < queues.length; i++)
-            queues[i] = new SynchList();
+            queues[i] = new Channel<MailMessage>(mailboxCapacity);
 
         Runnable receiveHandler = new Runnable() {
             public void run() {
@@ -49,13 +57,11 @@ public class PostOffice {
         Machine.networkLink().setInterruptHandlers(receiveHandler,
                 sendHandler);
 
-        KThread t = new KThread(new Runnable() {
+        postalDelivery = new Runnable() {
             public void run() {
                 postalDelivery();
             }
-        });
-
-        t.fork();
+        };
     }
 
     /**
@@ -69,7 +75,14 @@ public class PostOffice {
 
         Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-        MailMessage mail = (MailMessage) queues[port].removeFirst();
+        MailMessage mail = queues[port].take();
+
+        // there is room for a message held back for this port now
+        boolean intStatus = Machine.interrupt().disable();
+        numTaken++;
+        if (pending != null && pending.dstPort == port)
+            scheduleDelivery();
+        Machine.interrupt().restore(intStatus);
 
         if (Lib.test(dbgNet))
             System.out.println("got mail on port " + port + ": " + mail);
@@ -78,20 +91,33 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Deliver the message held back for a full mailbox, if any, and then
+     * take incoming messages from the network link and put them in the
+     * correct mailboxes, until the link is empty or a mailbox is full. Run by
+     * the deferred work thread.
      */
     private void postalDelivery() {
-        while (true) {
-            messageReceived.P();
-
-            Packet p = Machine.networkLink().receive();
-
-            MailMessage mail;
+        boolean intStatus = Machine.interrupt().disable();
+        deliveryQueued = false;
+        Machine.interrupt().restore(intStatus);
 
-            try {
-                mail = new MailMessage(p);
-            } catch (MalformedPacketException e) {
-                continue;
+        while (true) {
+            intStatus = Machine.interrupt().disable();
+            MailMessage mail = pending;
+            pending = null;
+            Packet p = (mail == null) ? Machine.networkLink().receive() : null;
+            long taken = numTaken;
+            Machine.interrupt().restore(intStatus);
+
+            if (mail == null) {
+                if (p == null)
+                    return;
+
+                try {
+                    mail = new MailMessage(p);
+                } catch (MalformedPacketException e) {
+                    continue;
+                }
             }
 
             if (Lib.test(dbgNet))
@@ -99,16 +125,43 @@ public class PostOffice {
                         + ": " + mail);
 
             // atomically add message to the mailbox and wake a waiting thread
-            queues[mail.dstPort].add(mail);
+            if (!queues[mail.dstPort].put(mail, 0)) {
+                Lib.debug(dbgNet, "mailbox full, holding mail back");
+
+                // unless a receiver made room meanwhile, wait for one to
+                intStatus = Machine.interrupt().disable();
+                pending = mail;
+                boolean retry = (numTaken != taken);
+                Machine.interrupt().restore(intStatus);
+                if (!retry)
+                    return;
+            }
         }
     }
 
     /**
      * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * link. Defers the delivery to the deferred work thread, unless a message
+     * is being held back, in which case the packet is left in the link until
+     * that message is delivered.
      */
     private void receiveInterrupt() {
-        messageReceived.V();
+        if (pending == null)
+            scheduleDelivery();
+    }
+
+    /**
+     * Queue <tt>postalDelivery()</tt> on the deferred work queue, unless it
+     * is already queued. Must be called with interrupts disabled.
+     */
+    private void scheduleDelivery() {
+        assert (Machine.interrupt().disabled());
+
+        if (!deliveryQueued) {
+            deliveryQueued = ThreadedKernel.deferredWork.raise(postalDelivery);
+            if (!deliveryQueued)
+                Lib.debug(dbgNet, "deferred work queue full, mail delayed");
+        }
     }
 
     /**
@@ -135,10 +188,18 @@ public class PostOffice {
         messageSent.V();
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;    // V'd when a message can be dequeued
+    private Channel<MailMessage>[] queues;
+    private Runnable postalDelivery;
+    private MailMessage pending = null;    // held back for a full mailbox
+    private long numTaken = 0;    // messages received from any mailbox
+    private boolean deliveryQueued = false;
     private Semaphore messageSent;    // V'd when a message can be queued
     private Lock sendLock;
 
+    /**
+     * The maximum number of undelivered messages held for each port.
+     */
+    public static final int mailboxCapacity = 16;
+
     private static final char dbgNet = 'n';
 }
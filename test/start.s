@@ -67,3 +67,14 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(thread_create, syscallThreadCreate)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(ring_setup, syscallRingSetup)
+	SYSCALLSTUB(syscall_submit, syscallSubmit)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pipe, syscallPipe)
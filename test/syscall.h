@@ -23,6 +23,17 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallThreadCreate	15
+#define syscallThreadJoin	16
+#define syscallThreadExit	17
+#define syscallFork		18
+#define syscallRingSetup	19
+#define syscallSubmit		20
+#define syscallReadv		21
+#define syscallWritev		22
+#define syscallPipe		23
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -100,6 +111,21 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process, and continue
+ * running the calling thread in both. Only the calling thread is copied. The
+ * child inherits the current process's pipe ends, under the same file
+ * descriptors; apart from those, only stdin and stdout are open in it.
+ *
+ * Memory is shared copy-on-write: a page is copied only when the parent or
+ * the child first writes to it, so fork() costs little when the child soon
+ * calls exec() or writes only a few pages.
+ *
+ * Returns the child's process ID in the parent, and 0 in the child. On error,
+ * returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on disk
@@ -169,6 +195,55 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/* A buffer for readv() and writev(). */
+struct iovec {
+    void *base;
+    int len;
+};
+
+#define IOV_MAX			16
+
+/**
+ * Like read(), but scatter the data read into iovcnt buffers, filling each in
+ * turn. The file is read once, for the total length of the buffers. iovcnt
+ * may be at most IOV_MAX.
+ *
+ * Returns the number of bytes read, or -1 on error. Nothing is read if any of
+ * the buffers is invalid.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data to write from iovcnt buffers, in order.
+ * The file is written once, so a record made of several buffers is written
+ * with a single operation. iovcnt may be at most IOV_MAX.
+ *
+ * Returns the number of bytes written, or -1 on error. Nothing is written if
+ * any of the buffers is invalid.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+#define PIPE_NONBLOCK		1
+
+/**
+ * Create a pipe, a one-way stream of bytes held in a kernel buffer, and store
+ * a file descriptor for its read end in fds[0], and one for its write end in
+ * fds[1]. The descriptors are inherited by fork(), so a pipe connects a
+ * process with its children. When a process's last thread exits, its file
+ * descriptors are closed.
+ *
+ * read() on an empty pipe waits until data is written, and then returns what
+ * is available; once every descriptor for the write end is closed, it returns
+ * 0. write() waits until all of its data fits in the pipe, and returns -1 if
+ * every descriptor for the read end is closed before anything is written. If
+ * flags includes PIPE_NONBLOCK, read() and write() never wait, and return -1
+ * instead if they cannot transfer anything.
+ *
+ * Returns 0 on success, or -1 if there are not two free file descriptors or
+ * fds is invalid.
+ */
+int pipe(int *fds, int flags);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream and may be
  * reused.
@@ -240,6 +315,142 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* USER SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ *
+ * A futex is an aligned int in user memory. User code implements locks and
+ * other primitives with ordinary loads and stores on the futex, and only calls
+ * into the kernel to sleep when it must wait, or to wake sleepers after it
+ * changes the futex. Futexes are identified by physical address, so threads
+ * in different processes can share one through shared memory.
+ */
+
+/**
+ * Atomically check that the int at addr still holds expected, and if so sleep
+ * until another thread calls futex_wake() on addr. The check and the sleep
+ * cannot be separated by a futex_wake(), so no wake-up is lost.
+ *
+ * Returns 0 after being woken, or -1 if *addr did not hold expected, or if addr
+ * is invalid or not aligned to 4 bytes. Callers should recheck their condition
+ * in either case.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up at most count threads sleeping in futex_wait() on addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is invalid or not aligned
+ * to 4 bytes, or count is negative.
+ */
+int futex_wake(int *addr, int count);
+
+/* THREAD MANAGEMENT SYSCALLS: thread_create, thread_join, thread_exit
+ *
+ * A process starts with a single thread. More threads can be created in the
+ * same process; they share its memory and open files, but each has its own
+ * registers and stack.
+ */
+
+/**
+ * Create a new thread in the current process, which calls func(arg) on a stack
+ * of its own. func must not return; it must call thread_exit() when it is
+ * done.
+ *
+ * Returns the new thread's ID, which can be passed to thread_join(), or -1 if
+ * there is no room for another stack.
+ */
+int thread_create(void (*func)(void *), void *arg);
+
+/**
+ * Wait for the thread with the specified ID, in the current process, to call
+ * thread_exit(). A thread can be joined only once, and cannot join itself. The
+ * thread that runs main() has ID 0.
+ *
+ * status points to an integer where the value the thread passed to
+ * thread_exit() is stored, or is 0 if the value is not needed.
+ *
+ * Returns 0 on success, or -1 if threadID does not refer to a thread that can
+ * be joined.
+ */
+int thread_join(int threadID, int *status);
+
+/**
+ * Terminate the current thread. Its stack is released for use by later
+ * threads, and status is passed to the thread that joins it. When the last
+ * thread of a process exits, the process's memory is released.
+ *
+ * thread_exit() never returns.
+ */
+void thread_exit(int status);
+
+/* BATCHED SYSCALLS: ring_setup, syscall_submit
+ *
+ * A program that makes many file syscalls can queue them in a ring in its own
+ * memory, and have the kernel run a whole batch of them with a single trap.
+ * The ring holds a submission queue, which the program fills, and a completion
+ * queue, which the kernel fills. Each queue is indexed by a head and a tail
+ * that only ever increase; an entry's slot is its index modulo the number of
+ * entries. The program advances sq_tail and cq_head, and the kernel advances
+ * sq_head and cq_tail.
+ */
+
+#define RING_ENTRIES		32
+
+#define RING_OP_NOP		0
+#define RING_OP_CREAT		1
+#define RING_OP_OPEN		2
+#define RING_OP_READ		3
+#define RING_OP_WRITE		4
+#define RING_OP_CLOSE		5
+#define RING_OP_UNLINK		6
+
+/* A queued syscall. For creat, open and unlink, addr is the name; for read
+ * and write, fd, addr and len are the file descriptor, buffer and count; for
+ * close, fd is the file descriptor. user_data is copied to the completion.
+ */
+struct ring_sqe {
+    int opcode;
+    int fd;
+    void *addr;
+    int len;
+    int user_data;
+};
+
+/* The result of a queued syscall: what the syscall itself would return. */
+struct ring_cqe {
+    int user_data;
+    int result;
+};
+
+struct ring {
+    unsigned int sq_head, sq_tail;
+    unsigned int cq_head, cq_tail;
+    struct ring_sqe sq[RING_ENTRIES];
+    struct ring_cqe cq[RING_ENTRIES];
+};
+
+/**
+ * Register ring with the kernel, for use by syscall_submit(). entries is the
+ * number of entries of each queue to use, normally RING_ENTRIES; it must be a
+ * power of two no greater than RING_ENTRIES. The ring must be word aligned,
+ * but may cross page boundaries; all four indices should be 0. A child
+ * created by fork() has no ring until it calls ring_setup() itself.
+ *
+ * Returns 0 on success, or -1 if the ring is not suitable, or if syscalls
+ * queued in the current ring are still running.
+ */
+int ring_setup(struct ring *ring, int entries);
+
+/**
+ * Run up to count queued syscalls, in order, posting a completion for each.
+ * Stops early when the submission queue is empty, or when the completion
+ * queue is full. Other threads may call syscall_submit() while a queued
+ * syscall blocks, so when several threads share a ring, completions can be
+ * posted out of order; match them up by user_data.
+ *
+ * Returns the number of syscalls run, or -1 if no ring has been set up.
+ */
+int syscall_submit(int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.Machine;
 
+import java.util.TreeSet;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -24,12 +26,26 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Runs the handlers
+     * of all timeouts that are due, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be
+     * run, once the thread has used up its quantum.
+     *
+     * @see    nachos.threads.Scheduler#preempt
      */
     public void timerInterrupt() {
-        KThread.currentThread().yield();
+        long time = Machine.timer().getTime();
+
+        while (!timeouts.isEmpty() &&
+                timeouts.first().time <= time) {
+            Timeout timeout = timeouts.first();
+            timeouts.remove(timeout);
+
+            timeout.handler.run();
+        }
+
+        if (ThreadedKernel.scheduler.preempt(KThread.currentThread()))
+            KThread.currentThread().yield();
     }
 
     /**
@@ -46,9 +62,80 @@ public class Alarm {
      * @see    nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
-        long wakeTime = Machine.timer().getTime() + x;
-        while (wakeTime > Machine.timer().getTime())
-            KThread.yield();
+        if (x <= 0)
+            return;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        final KThread thread = KThread.currentThread();
+        schedule(x, new Runnable() {
+            public void run() {
+                thread.ready();
+            }
+        });
+        KThread.sleep();
+
+        Machine.interrupt().restore(intStatus);
     }
+
+    /**
+     * Arrange for <i>handler</i> to be run by the timer interrupt handler,
+     * with interrupts disabled, during the first timer interrupt at least
+     * <i>x</i> ticks from now. Must be called with interrupts disabled.
+     *
+     * @param    x    the minimum number of clock ticks to wait.
+     * @param    handler    the callback to run.
+     * @return a handle that can be passed to <tt>cancel()</tt>.
+     */
+    Object schedule(long x, Runnable handler) {
+        assert (Machine.interrupt().disabled());
+
+        Timeout timeout =
+                new Timeout(Machine.timer().getTime() + x, handler);
+        timeouts.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Cancel a timeout set up by <tt>schedule()</tt>, if it has not already
+     * run. Must be called with interrupts disabled.
+     *
+     * @param    timeout    the handle returned by <tt>schedule()</tt>.
+     */
+    void cancel(Object timeout) {
+        assert (Machine.interrupt().disabled());
+
+        timeouts.remove(timeout);
+    }
+
+    private class Timeout implements Comparable<Timeout> {
+        Timeout(long time, Runnable handler) {
+            this.time = time;
+            this.handler = handler;
+            this.id = numTimeoutsCreated++;
+        }
+
+        public int compareTo(Timeout timeout) {
+            // can't return 0 for unequal objects, so check all fields
+            if (time < timeout.time)
+                return -1;
+            else if (time > timeout.time)
+                return 1;
+            else if (id < timeout.id)
+                return -1;
+            else if (id > timeout.id)
+                return 1;
+            else
+                return 0;
+        }
+
+        long time;
+        Runnable handler;
+
+        private long id;
+    }
+
+    private long numTimeoutsCreated = 0;
+    private TreeSet<Timeout> timeouts = new TreeSet<Timeout>();
 }
@@ -0,0 +1,125 @@
+package nachos.threads;
+
+import nachos.machine.Machine;
+
+/**
+ * A <tt>Barrier</tt> lets a fixed number of threads, called <i>parties</i>,
+ * wait for each other. Each party calls <tt>await()</tt>, which blocks until
+ * all parties have called it; the last one to arrive releases the others, all
+ * at once.
+ * <p/>
+ * <p/>
+ * A barrier can be reused: once it has released its parties, it starts
+ * counting arrivals for the next phase.
+ *
+ * @see    nachos.threads.CountDownLatch
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param    parties    the number of threads that must call
+     * <tt>await()</tt> before any of them returns. Must be positive.
+     */
+    public Barrier(int parties) {
+        assert (parties > 0);
+
+        this.parties = parties;
+    }
+
+    /**
+     * Wait until all parties have called <tt>await()</tt> in the current
+     * phase.
+     *
+     * @return the number of parties that arrived before the current thread in
+     * this phase; the last thread to arrive gets <tt>parties - 1</tt>.
+     */
+    public int await() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int index = arrived++;
+
+        if (arrived == parties) {
+            KThread thread;
+            while ((thread = waitQueue.nextThread()) != null)
+                thread.ready();
+
+            arrived = 0;
+            phase++;
+        } else {
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return index;
+    }
+
+    /**
+     * Return the number of parties this barrier waits for.
+     *
+     * @return the number of parties.
+     */
+    public int getParties() {
+        return parties;
+    }
+
+    /**
+     * Return the number of times this barrier has released its parties.
+     *
+     * @return the number of completed phases.
+     */
+    public int getPhase() {
+        return phase;
+    }
+
+    private static class PhaseTest implements Runnable {
+        PhaseTest(Barrier barrier, int[] counts, int phases) {
+            this.barrier = barrier;
+            this.counts = counts;
+            this.phases = phases;
+        }
+
+        public void run() {
+            for (int i = 0; i < phases; i++) {
+                counts[i]++;
+                barrier.await();
+                // nobody gets past the barrier before everyone has arrived
+                assert (counts[i] == barrier.getParties());
+            }
+        }
+
+        private Barrier barrier;
+        private int[] counts;
+        private int phases;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        Barrier barrier = new Barrier(4);
+        int[] counts = new int[3];
+
+        KThread[] threads = new KThread[barrier.getParties() - 1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread(new PhaseTest(barrier, counts,
+                    counts.length));
+            threads[i].setName("party " + i).fork();
+        }
+
+        new PhaseTest(barrier, counts, counts.length).run();
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assert (barrier.getPhase() == counts.length);
+    }
+
+    private int parties;
+    private int arrived = 0;
+    private int phase = 0;
+    private ThreadQueue waitQueue =
+            ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -0,0 +1,306 @@
+package nachos.threads;
+
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * A bounded, synchronized FIFO queue that any number of producer and consumer
+ * threads can share. Items are held in a fixed-size circular array, so a
+ * producer that finds the channel full blocks until a consumer makes room.
+ * <p/>
+ * <p/>
+ * Wake-ups are chained: a thread that adds or removes items wakes at most one
+ * waiting thread on the other side, and a woken thread that leaves work
+ * behind wakes the next one. Together with the batch operations
+ * <tt>putAll()</tt> and <tt>drainTo()</tt>, this lets one wake-up move many
+ * items.
+ *
+ * @see    nachos.threads.SynchList
+ */
+public class Channel<T> {
+    /**
+     * Allocate a new, empty channel.
+     *
+     * @param    capacity    the maximum number of items the channel can hold.
+     * Must be positive.
+     */
+    public Channel(int capacity) {
+        assert (capacity > 0);
+
+        items = new Object[capacity];
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+    }
+
+    /**
+     * Return the maximum number of items this channel can hold.
+     *
+     * @return the capacity of this channel.
+     */
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Add an item to the end of the channel, blocking until there is room if
+     * necessary.
+     *
+     * @param    item    the item to add. Must not be <tt>null</tt>.
+     */
+    public void put(T item) {
+        assert (item != null);
+
+        lock.acquire();
+        while (count == items.length)
+            awaitNotFull(-1);
+        enqueue(item);
+        signal();
+        lock.release();
+    }
+
+    /**
+     * Add an item to the end of the channel, waiting at most <i>timeout</i>
+     * clock ticks for room. A <i>timeout</i> of 0 never waits.
+     *
+     * @param    item    the item to add. Must not be <tt>null</tt>.
+     * @param    timeout    the maximum number of clock ticks to wait.
+     * @return    <tt>true</tt> if the item was added.
+     */
+    public boolean put(T item, long timeout) {
+        assert (item != null && timeout >= 0);
+
+        long deadline = Machine.timer().getTime() + timeout;
+
+        lock.acquire();
+        while (count == items.length) {
+            if (!awaitNotFull(deadline)) {
+                lock.release();
+                return false;
+            }
+        }
+        enqueue(item);
+        signal();
+        lock.release();
+
+        return true;
+    }
+
+    /**
+     * Add <i>len</i> items from an array to the end of the channel, in order.
+     * As many items as fit are added at a time, waking at most one consumer
+     * per batch, blocking whenever the channel is full.
+     *
+     * @param    src    the array holding the items. The items must not be
+     * <tt>null</tt>.
+     * @param    off    the index of the first item to add.
+     * @param    len    the number of items to add.
+     */
+    public void putAll(T[] src, int off, int len) {
+        assert (off >= 0 && len >= 0 && off + len <= src.length);
+
+        lock.acquire();
+        while (len > 0) {
+            while (count == items.length)
+                awaitNotFull(-1);
+
+            int amount = Math.min(len, items.length - count);
+            for (int i = 0; i < amount; i++) {
+                assert (src[off + i] != null);
+                enqueue(src[off + i]);
+            }
+            off += amount;
+            len -= amount;
+
+            signal();
+        }
+        lock.release();
+    }
+
+    /**
+     * Remove an item from the front of the channel, blocking until the channel
+     * is non-empty if necessary.
+     *
+     * @return the item removed from the front of the channel.
+     */
+    public T take() {
+        lock.acquire();
+        while (count == 0)
+            awaitNotEmpty(-1);
+        T item = dequeue();
+        signal();
+        lock.release();
+
+        return item;
+    }
+
+    /**
+     * Remove an item from the front of the channel, waiting at most
+     * <i>timeout</i> clock ticks for one to arrive. A <i>timeout</i> of 0
+     * never waits.
+     *
+     * @param    timeout    the maximum number of clock ticks to wait.
+     * @return the item removed from the front of the channel, or
+     * <tt>null</tt> if the channel stayed empty.
+     */
+    public T take(long timeout) {
+        assert (timeout >= 0);
+
+        long deadline = Machine.timer().getTime() + timeout;
+
+        lock.acquire();
+        while (count == 0) {
+            if (!awaitNotEmpty(deadline)) {
+                lock.release();
+                return null;
+            }
+        }
+        T item = dequeue();
+        signal();
+        lock.release();
+
+        return item;
+    }
+
+    /**
+     * Remove up to <i>max</i> items from the front of the channel into
+     * <i>dst</i>, starting at index 0, blocking until the channel is non-empty
+     * if necessary. Never blocks once at least one item has been removed.
+     *
+     * @param    dst    the array to store the items in.
+     * @param    max    the maximum number of items to remove. Must be
+     * positive.
+     * @return the number of items removed.
+     */
+    public int drainTo(T[] dst, int max) {
+        assert (max > 0 && max <= dst.length);
+
+        lock.acquire();
+        while (count == 0)
+            awaitNotEmpty(-1);
+
+        int amount = Math.min(max, count);
+        for (int i = 0; i < amount; i++)
+            dst[i] = dequeue();
+
+        signal();
+        lock.release();
+
+        return amount;
+    }
+
+    private void enqueue(T item) {
+        items[(head + count) % items.length] = item;
+        count++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T dequeue() {
+        T item = (T) items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        count--;
+
+        return item;
+    }
+
+    /**
+     * Wake at most one waiting producer if there is room, and at most one
+     * waiting consumer if there are items. Each woken thread does the same
+     * once it is done, so waiters are woken only while there is work for
+     * them.
+     */
+    private void signal() {
+        if (count < items.length && waitingProducers > 0)
+            notFull.wake();
+        if (count > 0 && waitingConsumers > 0)
+            notEmpty.wake();
+    }
+
+    private boolean awaitNotFull(long deadline) {
+        waitingProducers++;
+        boolean woken = await(notFull, deadline);
+        waitingProducers--;
+
+        return woken;
+    }
+
+    private boolean awaitNotEmpty(long deadline) {
+        waitingConsumers++;
+        boolean woken = await(notEmpty, deadline);
+        waitingConsumers--;
+
+        return woken;
+    }
+
+    /**
+     * Sleep on the specified condition until woken or until
+     * <i>deadline</i>, if it is not negative.
+     *
+     * @return    <tt>false</tt> if the deadline passed.
+     */
+    private boolean await(Condition2 condition, long deadline) {
+        if (deadline < 0) {
+            condition.sleep();
+            return true;
+        }
+
+        return condition.sleepFor(deadline - Machine.timer().getTime());
+    }
+
+    private static class PingTest implements Runnable {
+        PingTest(Channel<Integer> ping, Channel<Integer> pong) {
+            this.ping = ping;
+            this.pong = pong;
+        }
+
+        public void run() {
+            Integer[] buf = new Integer[4];
+            int moved = 0;
+            while (moved < 10) {
+                int amount = ping.drainTo(buf, buf.length);
+                pong.putAll(buf, 0, amount);
+                moved += amount;
+            }
+        }
+
+        private Channel<Integer> ping;
+        private Channel<Integer> pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        final Channel<Integer> ping = new Channel<Integer>(3);
+        Channel<Integer> pong = new Channel<Integer>(2);
+
+        final Integer[] values = new Integer[10];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Integer.valueOf(i);
+
+        new KThread(new PingTest(ping, pong)).setName("ping").fork();
+        new KThread(new Runnable() {
+            public void run() {
+                ping.putAll(values, 0, values.length);
+            }
+        }).setName("producer").fork();
+
+        for (int i = 0; i < values.length; i++)
+            assert (pong.take() == values[i]);
+
+        assert (pong.take(Stats.TimerTicks) == null);
+        assert (pong.put(values[0], 0) && pong.put(values[1], 0));
+        assert (!pong.put(values[2], 0));
+    }
+
+    private Object[] items;
+    private int head = 0;
+    private int count = 0;
+    private int waitingProducers = 0;
+    private int waitingConsumers = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
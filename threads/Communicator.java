@@ -1,11 +1,20 @@
 package nachos.threads;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>,
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ * <p/>
+ * <p/>
+ * Besides single words, a speaker can hand a whole buffer of words to a
+ * listener in one rendezvous. The words are copied directly from the
+ * speaker's array into the listener's array by whichever of the two threads
+ * arrives second, so a transfer costs one wake-up no matter how long it is.
+ * Waiting speakers and listeners are paired off in the order they arrived.
  */
 public class Communicator {
     /**
@@ -25,6 +34,7 @@ public class Communicator {
      * @param    word    the integer to transfer.
      */
     public void speak(int word) {
+        speak(new int[]{word}, 0, 1);
     }
 
     /**
@@ -34,6 +44,174 @@ public class Communicator {
      * @return the integer transferred.
      */
     public int listen() {
-        return 0;
+        int[] buf = new int[1];
+
+        while (listen(buf, 0, 1) == 0)
+            ;
+
+        return buf[0];
+    }
+
+    /**
+     * Wait for a thread to listen through this communicator, and then transfer
+     * up to <i>len</i> words from <i>words</i> to the listener in a single
+     * rendezvous.
+     * <p/>
+     * <p/>
+     * Does not return until this thread is paired up with a listening thread.
+     * If the listener's buffer is shorter than <i>len</i>, only as many words
+     * as fit are transferred; the rest are not delivered to anyone.
+     *
+     * @param    words    the array holding the words to transfer.
+     * @param    off    the index of the first word to transfer.
+     * @param    len    the number of words to transfer.
+     * @return the number of words the listener received.
+     */
+    public int speak(int[] words, int off, int len) {
+        assert (off >= 0 && len >= 0 && off + len <= words.length);
+
+        lock.acquire();
+
+        int count;
+
+        if (!listeners.isEmpty()) {
+            Transfer listener = listeners.removeFirst();
+            count = Math.min(len, listener.len);
+            System.arraycopy(words, off, listener.buf, listener.off, count);
+            listener.complete(count);
+        } else {
+            count = new Transfer(words, off, len).await(speakers);
+        }
+
+        lock.release();
+
+        return count;
+    }
+
+    /**
+     * Wait for a thread to speak through this communicator, and then receive
+     * up to <i>len</i> of the words it passed to <tt>speak()</tt> into
+     * <i>buf</i>, in a single rendezvous. If <i>len</i> is 0, returns 0 at
+     * once without pairing with a speaker, so no word is lost.
+     *
+     * @param    buf    the array to store the words in.
+     * @param    off    the index at which to store the first word.
+     * @param    len    the maximum number of words to receive.
+     * @return the number of words received.
+     */
+    public int listen(int[] buf, int off, int len) {
+        assert (off >= 0 && len >= 0 && off + len <= buf.length);
+
+        if (len == 0)
+            return 0;
+
+        lock.acquire();
+
+        int count;
+
+        if (!speakers.isEmpty()) {
+            Transfer speaker = speakers.removeFirst();
+            count = Math.min(len, speaker.len);
+            System.arraycopy(speaker.buf, speaker.off, buf, off, count);
+            speaker.complete(count);
+        } else {
+            count = new Transfer(buf, off, len).await(listeners);
+        }
+
+        lock.release();
+
+        return count;
+    }
+
+    /**
+     * A speaker or listener waiting to be paired off. The thread that pairs
+     * with it copies the words and then completes the transfer.
+     */
+    private class Transfer {
+        Transfer(int[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+
+        /**
+         * Wait on the specified queue until another thread completes this
+         * transfer. The caller must hold the communicator's lock.
+         *
+         * @param    queue    the queue of waiting speakers or listeners.
+         * @return the number of words transferred.
+         */
+        int await(LinkedList<Transfer> queue) {
+            queue.add(this);
+
+            while (!done)
+                paired.sleep();
+
+            return count;
+        }
+
+        void complete(int count) {
+            this.count = count;
+            done = true;
+            paired.wake();
+        }
+
+        int[] buf;
+        int off, len;
+        int count = 0;
+        boolean done = false;
+        Condition2 paired = new Condition2(lock);
+    }
+
+    private static class SpeakTest implements Runnable {
+        SpeakTest(Communicator com, int base) {
+            this.com = com;
+            this.base = base;
+        }
+
+        public void run() {
+            int[] words = new int[8];
+            for (int i = 0; i < words.length; i++)
+                words[i] = base + i;
+
+            int spoken = com.speak(words, 0, words.length);
+            assert (spoken == words.length);
+            com.speak(base + words.length);
+        }
+
+        private Communicator com;
+        private int base;
     }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        Communicator com = new Communicator();
+
+        new KThread(new SpeakTest(com, 100)).setName("speaker 1").fork();
+        new KThread(new SpeakTest(com, 200)).setName("speaker 2").fork();
+
+        // speakers are queued before us, so they are paired off in order
+        KThread.yield();
+
+        // an empty listen does not take a waiting speaker's words
+        int[] buf = new int[10];
+        int none = com.listen(buf, 0, 0);
+        assert (none == 0);
+
+        for (int base = 100; base <= 200; base += 100) {
+            int heard = com.listen(buf, 1, 9);
+            assert (heard == 8);
+            for (int i = 0; i < 8; i++)
+                assert (buf[1 + i] == base + i);
+        }
+
+        int sum = com.listen() + com.listen();
+        assert (sum == 108 + 208);
+    }
+
+    private Lock lock = new Lock();
+    private LinkedList<Transfer> speakers = new LinkedList<Transfer>();
+    private LinkedList<Transfer> listeners = new LinkedList<Transfer>();
 }
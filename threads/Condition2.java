@@ -1,11 +1,25 @@
 package nachos.threads;
 
+import nachos.machine.Machine;
+
+import java.util.LinkedList;
+
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  * <p/>
  * <p/>
- * You must implement this.
+ * Unlike <tt>Condition</tt>, a thread can also sleep on a
+ * <tt>Condition2</tt> with a timeout, using the alarm to wake it if nobody
+ * else does in time.
+ * <p/>
+ * <p/>
+ * Waking uses <i>wait morphing</i>. The waker holds the associated lock, so a
+ * woken thread could not make progress before the lock is released anyway.
+ * Instead of being made ready, only to block again on the lock, the woken
+ * thread is moved straight onto the lock's wait queue, and runs once, when the
+ * lock is handed to it. This keeps <tt>wakeAll()</tt> from causing a burst of
+ * useless context switches.
  *
  * @see    nachos.threads.Condition
  */
@@ -19,7 +33,22 @@ public class Condition2 {
      * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+        this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name. The name is used only to
+     * identify the condition variable when profiling.
+     *
+     * @param    conditionLock    the lock associated with this condition
+     * variable.
+     * @param    name    the name of this condition variable, or
+     * <tt>null</tt>.
+     * @see    nachos.threads.LockProfiler
+     */
+    public Condition2(Lock conditionLock, String name) {
         this.conditionLock = conditionLock;
+        profile = LockProfiler.profile("Condition2", name);
     }
 
     /**
@@ -31,9 +60,65 @@ public class Condition2 {
     public void sleep() {
         assert (conditionLock.isHeldByCurrentThread());
 
+        boolean intStatus = Machine.interrupt().disable();
+        long start = Machine.timer().getTime();
+
+        waitQueue.add(new Waiter(KThread.currentThread()));
         conditionLock.release();
+        KThread.sleep();
 
-        conditionLock.acquire();
+        // the waker handed us the lock
+        conditionLock.handedOver();
+
+        if (profile != null)
+            profile.waited(Machine.timer().getTime() - start);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but also wake up if nobody has called
+     * <tt>wake()</tt> or <tt>wakeAll()</tt> after at least <i>x</i> clock
+     * ticks. The thread will automatically reacquire the lock before
+     * <tt>sleepFor()</tt> returns, in either case.
+     *
+     * @param    x    the minimum number of clock ticks to wait.
+     * @return    <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     * <tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     * @see    nachos.threads.Alarm#waitUntil
+     */
+    public boolean sleepFor(long x) {
+        assert (conditionLock.isHeldByCurrentThread());
+
+        if (x <= 0)
+            return false;
+
+        boolean intStatus = Machine.interrupt().disable();
+        long start = Machine.timer().getTime();
+
+        final Waiter waiter = new Waiter(KThread.currentThread());
+        waitQueue.add(waiter);
+        waiter.timeout = ThreadedKernel.alarm.schedule(x, new Runnable() {
+            public void run() {
+                if (waitQueue.remove(waiter))
+                    waiter.thread.ready();
+            }
+        });
+        conditionLock.release();
+        KThread.sleep();
+
+        // unless we timed out, the waker handed us the lock
+        if (waiter.woken)
+            conditionLock.handedOver();
+        else
+            conditionLock.acquire();
+
+        if (profile != null)
+            profile.waited(Machine.timer().getTime() - start);
+
+        Machine.interrupt().restore(intStatus);
+
+        return waiter.woken;
     }
 
     /**
@@ -42,6 +127,13 @@ public class Condition2 {
      */
     public void wake() {
         assert (conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (!waitQueue.isEmpty())
+            wake(waitQueue.removeFirst());
+
+        Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -50,7 +142,41 @@ public class Condition2 {
      */
     public void wakeAll() {
         assert (conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        while (!waitQueue.isEmpty())
+            wake(waitQueue.removeFirst());
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Move a waiter onto the associated lock's wait queue. It will be made
+     * ready when the lock is handed to it.
+     */
+    private void wake(Waiter waiter) {
+        if (waiter.timeout != null)
+            ThreadedKernel.alarm.cancel(waiter.timeout);
+
+        waiter.woken = true;
+        conditionLock.waitForAccess(waiter.thread);
+    }
+
+    /**
+     * A thread sleeping on this condition variable.
+     */
+    private static class Waiter {
+        Waiter(KThread thread) {
+            this.thread = thread;
+        }
+
+        KThread thread;
+        Object timeout = null;
+        boolean woken = false;
     }
 
     private Lock conditionLock;
+    private LockProfiler.Profile profile;
+    private LinkedList<Waiter> waitQueue = new LinkedList<Waiter>();
 }
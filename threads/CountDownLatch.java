@@ -0,0 +1,120 @@
+package nachos.threads;
+
+import nachos.machine.Machine;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a number of events have
+ * happened. The latch starts with a count; <tt>countDown()</tt> decrements it,
+ * and <tt>await()</tt> blocks until it reaches zero. When it does, every
+ * waiting thread is released at once, and later calls to <tt>await()</tt>
+ * return immediately.
+ * <p/>
+ * <p/>
+ * Unlike a <tt>Barrier</tt>, a latch cannot be reused, and the threads
+ * counting down do not wait.
+ *
+ * @see    nachos.threads.Barrier
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param    count    the number of times <tt>countDown()</tt> must be
+     * called before waiting threads are released. Must not be negative.
+     */
+    public CountDownLatch(int count) {
+        assert (count >= 0);
+
+        this.count = count;
+    }
+
+    /**
+     * Wait until the count reaches zero.
+     */
+    public void await() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count > 0) {
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement the count, releasing all waiting threads if it reaches zero.
+     * Does nothing if the count is already zero.
+     */
+    public void countDown() {
+        countDown(1);
+    }
+
+    /**
+     * Decrement the count by <i>n</i>, releasing all waiting threads if it
+     * reaches zero. The count never goes below zero.
+     *
+     * @param    n    the number of events that have happened. Must be
+     * positive.
+     */
+    public void countDown(int n) {
+        assert (n > 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count > 0) {
+            count = Math.max(count - n, 0);
+
+            if (count == 0) {
+                KThread thread;
+                while ((thread = waitQueue.nextThread()) != null)
+                    thread.ready();
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count.
+     *
+     * @return the number of events still to happen.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final int[] started = new int[1];
+
+        // fan out: the workers wait for the start signal, then each reports
+        for (int i = 0; i < done.getCount(); i++) {
+            new KThread(new Runnable() {
+                public void run() {
+                    start.await();
+                    started[0]++;
+                    done.countDown();
+                }
+            }).setName("worker " + i).fork();
+        }
+
+        KThread.yield();
+        assert (started[0] == 0);
+
+        start.countDown();
+        done.await();
+        assert (started[0] == 3 && done.getCount() == 0);
+
+        done.countDown(2);
+        done.await();
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+            ThreadedKernel.scheduler.newThreadQueue(false);
+}
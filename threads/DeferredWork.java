@@ -0,0 +1,254 @@
+package nachos.threads;
+
+import nachos.machine.Histogram;
+import nachos.machine.Machine;
+
+/**
+ * A queue of work deferred by interrupt handlers, the kernel's equivalent of
+ * a "bottom half". An interrupt handler, which runs with interrupts disabled,
+ * calls <tt>raise()</tt> to queue a handler and returns at once. A kernel
+ * thread running at the highest priority the scheduler allows takes queued
+ * handlers off in batches and runs them with interrupts enabled, in the order
+ * they were raised.
+ * <p/>
+ * <p/>
+ * The queue has a fixed capacity, so raising work never allocates or blocks.
+ * Work raised while the queue is full is dropped and counted. Queue depth,
+ * the latency from <tt>raise()</tt> to the start of each handler, and batch
+ * sizes are printed by <tt>print()</tt>; the kernel's queue reports them in
+ * <tt>Stats.print()</tt>.
+ */
+public class DeferredWork {
+    /**
+     * Allocate a new deferred work queue and fork the thread that drains it.
+     *
+     * @param    name    the name of the queue and its thread.
+     * @param    capacity    the maximum number of handlers that can be
+     * queued. Must be positive.
+     */
+    public DeferredWork(String name, int capacity) {
+        assert (capacity > 0);
+
+        this.name = name;
+        handlers = new Runnable[capacity];
+        raisedAt = new long[capacity];
+
+        queueDepth = new Histogram("  queue depth");
+        drainLatency = new Histogram("  drain latency");
+        batchSize = new Histogram("  batch size");
+
+        drainer = new KThread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+        drainer.setName(name).fork();
+    }
+
+    /**
+     * Queue a handler to be run by the draining thread. Can be called from an
+     * interrupt handler.
+     *
+     * @param    handler    the handler to run.
+     * @return    <tt>true</tt> if the handler was queued, or <tt>false</tt> if
+     * the queue was full and it was dropped.
+     */
+    public boolean raise(Runnable handler) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        assert (!shutdown);
+        boolean queued = (count < handlers.length);
+        if (queued) {
+            int tail = (head + count) % handlers.length;
+            handlers[tail] = handler;
+            raisedAt[tail] = Machine.timer().getTime();
+            count++;
+            numRaised++;
+            queueDepth.record(count);
+
+            if (drainerSleeping) {
+                drainerSleeping = false;
+                drainer.ready();
+            }
+        } else {
+            numDropped++;
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return queued;
+    }
+
+    /**
+     * Let the draining thread run every handler already queued, then wait for
+     * it to exit. No more work may be raised afterwards.
+     */
+    public void shutdown() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        assert (!shutdown);
+        shutdown = true;
+
+        if (drainerSleeping) {
+            drainerSleeping = false;
+            drainer.ready();
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        drainer.join();
+    }
+
+    /**
+     * Return the number of handlers queued so far.
+     *
+     * @return the number of handlers raised and not dropped.
+     */
+    public long getNumRaised() {
+        return numRaised;
+    }
+
+    /**
+     * Return the number of handlers dropped because the queue was full.
+     *
+     * @return the number of handlers dropped.
+     */
+    public long getNumDropped() {
+        return numDropped;
+    }
+
+    /**
+     * Return the histogram of queue depths, sampled each time a handler is
+     * queued.
+     *
+     * @return the queue depth histogram.
+     */
+    public Histogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Return the histogram of clock ticks between queueing a handler and
+     * starting to run it.
+     *
+     * @return the drain latency histogram.
+     */
+    public Histogram getDrainLatency() {
+        return drainLatency;
+    }
+
+    /**
+     * Return the histogram of the number of handlers taken off the queue at
+     * once.
+     *
+     * @return the batch size histogram.
+     */
+    public Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Print this queue's statistics.
+     */
+    public void print() {
+        System.out.println("Deferred work (" + name + "): raised " + numRaised
+                + ", dropped " + numDropped);
+        if (queueDepth.getCount() != 0) {
+            queueDepth.print();
+            drainLatency.print();
+            batchSize.print();
+        }
+    }
+
+    private void drain() {
+        boolean intStatus = Machine.interrupt().disable();
+        while (ThreadedKernel.scheduler.increasePriority())
+            ;
+        Machine.interrupt().restore(intStatus);
+
+        Runnable[] batch = new Runnable[maxBatch];
+        long[] batchRaisedAt = new long[maxBatch];
+
+        while (true) {
+            intStatus = Machine.interrupt().disable();
+
+            while (count == 0 && !shutdown) {
+                drainerSleeping = true;
+                KThread.sleep();
+            }
+
+            if (count == 0) {
+                Machine.interrupt().restore(intStatus);
+                return;
+            }
+
+            int amount = Math.min(count, maxBatch);
+            for (int i = 0; i < amount; i++) {
+                batch[i] = handlers[head];
+                batchRaisedAt[i] = raisedAt[head];
+                handlers[head] = null;
+                head = (head + 1) % handlers.length;
+            }
+            count -= amount;
+            batchSize.record(amount);
+
+            Machine.interrupt().restore(intStatus);
+
+            for (int i = 0; i < amount; i++) {
+                drainLatency.record(Machine.timer().getTime()
+                        - batchRaisedAt[i]);
+                batch[i].run();
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        DeferredWork work = new DeferredWork("test", 4);
+        final int[] ran = new int[1];
+
+        Runnable handler = new Runnable() {
+            public void run() {
+                ran[0]++;
+            }
+        };
+
+        // raise a burst as an interrupt handler would, overflowing the queue
+        boolean intStatus = Machine.interrupt().disable();
+        for (int i = 0; i < 5; i++) {
+            boolean queued = work.raise(handler);
+            assert (queued == (i < 4));
+        }
+        Machine.interrupt().restore(intStatus);
+
+        KThread.yield();
+        assert (ran[0] == 4 && work.getNumDropped() == 1);
+        assert (work.getBatchSize().getMax() == 4);
+
+        work.shutdown();
+    }
+
+    /**
+     * The maximum number of handlers taken off the queue at once.
+     */
+    public static final int maxBatch = 16;
+
+    private String name;
+    private Runnable[] handlers;
+    private long[] raisedAt;
+    private int head = 0;
+    private int count = 0;
+
+    private KThread drainer;
+    private boolean drainerSleeping = false;
+    private boolean shutdown = false;
+
+    private long numRaised = 0;
+    private long numDropped = 0;
+    private Histogram queueDepth;
+    private Histogram drainLatency;
+    private Histogram batchSize;
+}
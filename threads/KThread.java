@@ -1,7 +1,9 @@
 package nachos.threads;
 
+import nachos.machine.Histogram;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Stats;
 import nachos.machine.TCB;
 
 import java.util.LinkedList;
@@ -53,6 +55,12 @@ public class KThread {
             readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
             readyQueue.acquire(this);
 
+            Stats.addReporter(new Runnable() {
+                public void run() {
+                    printSchedulingStats();
+                }
+            });
+
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
@@ -196,7 +204,7 @@ public class KThread {
         toBeDestroyed = currentThread;
 
 
-        currentThread.status = statusFinished;
+        currentThread.setStatus(statusFinished);
 
         for (KThread t : currentThread().waitingThreads) {
             t.ready();
@@ -251,8 +259,10 @@ public class KThread {
 
         assert (Machine.interrupt().disabled());
 
-        if (currentThread.status != statusFinished)
-            currentThread.status = statusBlocked;
+        if (currentThread.status != statusFinished) {
+            ThreadedKernel.scheduler.blocked(currentThread);
+            currentThread.setStatus(statusBlocked);
+        }
 
         runNextThread();
     }
@@ -267,7 +277,7 @@ public class KThread {
         assert (Machine.interrupt().disabled());
         assert (status != statusReady);
 
-        status = statusReady;
+        setStatus(statusReady);
         if (this != idleThread)
             readyQueue.waitForAccess(this);
 
@@ -381,7 +391,8 @@ public class KThread {
 
         Machine.autoGrader().runningThread(this);
 
-        status = statusRunning;
+        setStatus(statusRunning);
+        sliceInterrupts = 0;
 
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
@@ -399,6 +410,113 @@ public class KThread {
         assert (this == currentThread);
     }
 
+    /**
+     * Change the status of this thread, charging the simulated time spent in
+     * the old status to this thread and to the kernel-wide totals. Leaving
+     * the ready state for the running state records a sample in the
+     * ready-to-run latency histogram, and leaving the running state records a
+     * sample in the run length histogram. The idle thread is charged its time
+     * but does not contribute samples.
+     *
+     * @param    newStatus    the new status of this thread.
+     */
+    private void setStatus(int newStatus) {
+        long now = Machine.timer().getTime();
+        long elapsed = now - statusSince;
+
+        switch (status) {
+            case statusReady:
+                readyTicks += elapsed;
+                if (this != idleThread) {
+                    totalReadyTicks += elapsed;
+                    if (newStatus == statusRunning)
+                        readyLatency.record(elapsed);
+                }
+                break;
+            case statusRunning:
+                runningTicks += elapsed;
+                if (this != idleThread) {
+                    totalRunningTicks += elapsed;
+                    runLength.record(elapsed);
+                }
+                break;
+            case statusBlocked:
+                blockedTicks += elapsed;
+                if (this != idleThread)
+                    totalBlockedTicks += elapsed;
+                break;
+        }
+
+        status = newStatus;
+        statusSince = now;
+    }
+
+    /**
+     * Return the number of clock ticks this thread has spent on the ready
+     * queue, not counting time in its current status.
+     *
+     * @return the number of ticks this thread has spent ready to run.
+     */
+    public long getReadyTicks() {
+        return readyTicks;
+    }
+
+    /**
+     * Return the number of clock ticks this thread has spent running, not
+     * counting time in its current status.
+     *
+     * @return the number of ticks this thread has spent running.
+     */
+    public long getRunningTicks() {
+        return runningTicks;
+    }
+
+    /**
+     * Return the number of clock ticks this thread has spent blocked, not
+     * counting time in its current status.
+     *
+     * @return the number of ticks this thread has spent blocked.
+     */
+    public long getBlockedTicks() {
+        return blockedTicks;
+    }
+
+    /**
+     * Return the histogram of ready-to-run latencies: the number of ticks
+     * between a thread being placed on the ready queue and it being
+     * dispatched, over all threads except the idle thread.
+     *
+     * @return the ready-to-run latency histogram.
+     */
+    public static Histogram getReadyLatency() {
+        return readyLatency;
+    }
+
+    /**
+     * Return the histogram of run lengths: the number of ticks a thread runs
+     * between being dispatched and yielding, blocking or finishing, over all
+     * threads except the idle thread.
+     *
+     * @return the run length histogram.
+     */
+    public static Histogram getRunLength() {
+        return runLength;
+    }
+
+    /**
+     * Print the kernel-wide ready, running and blocked totals, followed by
+     * the latency and run length histograms. Called from
+     * <tt>Stats.print()</tt>.
+     */
+    public static void printSchedulingStats() {
+        System.out.println("Threads: created " + numCreated
+                + ", ready " + totalReadyTicks
+                + ", running " + totalRunningTicks
+                + ", blocked " + totalBlockedTicks);
+        readyLatency.print();
+        runLength.print();
+    }
+
     private static class PingTest implements Runnable {
         PingTest(int which) {
             this.which = which;
@@ -434,6 +552,24 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The length of this thread's time slice, in timer interrupts.
+     *
+     * @see nachos.threads.Scheduler#getQuantum
+     */
+    int quantum = Scheduler.quantumDefault;
+
+    /**
+     * The number of timer interrupts taken since this thread was last
+     * dispatched.
+     */
+    int sliceInterrupts = 0;
+
+    /**
+     * The number of units this thread is waiting for in <tt>Semaphore.P()</tt>.
+     */
+    int semaphoreNeeds = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -446,6 +582,10 @@ public class KThread {
      * on the ready queue and not running).
      */
     private int status = statusNew;
+    private long statusSince = Machine.timer().getTime();
+    private long readyTicks = 0;
+    private long runningTicks = 0;
+    private long blockedTicks = 0;
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
@@ -460,6 +600,13 @@ public class KThread {
      */
     private static int numCreated = 0;
 
+    private static long totalReadyTicks = 0;
+    private static long totalRunningTicks = 0;
+    private static long totalBlockedTicks = 0;
+    private static Histogram readyLatency =
+            new Histogram("Ready-to-run latency");
+    private static Histogram runLength = new Histogram("Run length");
+
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
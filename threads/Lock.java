@@ -24,6 +24,18 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+        this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name. The lock will initially be
+     * <i>free</i>. The name is used only to identify the lock when profiling.
+     *
+     * @param    name    the name of this lock, or <tt>null</tt>.
+     * @see    nachos.threads.LockProfiler
+     */
+    public Lock(String name) {
+        profile = LockProfiler.profile("Lock", name);
     }
 
     /**
@@ -37,6 +49,8 @@ public class Lock {
         KThread thread = KThread.currentThread();
 
         if (lockHolder != null) {
+            if (profile != null)
+                profile.waiting(thread, this);
             waitQueue.waitForAccess(thread);
             KThread.sleep();
         } else {
@@ -46,6 +60,11 @@ public class Lock {
 
         assert (lockHolder == thread);
 
+        if (profile != null) {
+            profile.acquired(thread);
+            holdStart = Machine.timer().getTime();
+        }
+
         Machine.interrupt().restore(intStatus);
     }
 
@@ -57,8 +76,13 @@ public class Lock {
 
         boolean intStatus = Machine.interrupt().disable();
 
-        if ((lockHolder = waitQueue.nextThread()) != null)
+        if (profile != null)
+            profile.released(Machine.timer().getTime() - holdStart);
+
+        if ((lockHolder = waitQueue.nextThread()) != null) {
+            holdStart = Machine.timer().getTime();
             lockHolder.ready();
+        }
 
         Machine.interrupt().restore(intStatus);
     }
@@ -72,6 +96,52 @@ public class Lock {
         return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Make a blocked thread wait for this lock, as if it had called
+     * <tt>acquire()</tt>. The thread stays blocked until <tt>release()</tt>
+     * hands it the lock, and then resumes already holding it. The current
+     * thread must hold this lock, and interrupts must be disabled.
+     *
+     * @param    thread    the blocked thread that should wait for this lock.
+     * @see    nachos.threads.Condition2#wake
+     */
+    void waitForAccess(KThread thread) {
+        assert (Machine.interrupt().disabled());
+        assert (isHeldByCurrentThread());
+
+        if (profile != null)
+            profile.waiting(thread, this);
+        waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Count the acquisition of this lock by a thread that waited for it
+     * through <tt>waitForAccess()</tt>, once <tt>release()</tt> has handed
+     * it the lock. Must be called by that thread, with interrupts disabled.
+     */
+    void handedOver() {
+        assert (Machine.interrupt().disabled());
+        assert (isHeldByCurrentThread());
+
+        if (profile != null) {
+            profile.acquired(KThread.currentThread());
+            holdStart = Machine.timer().getTime();
+        }
+    }
+
+    /**
+     * Return the thread holding this lock. Must be called with interrupts
+     * disabled.
+     *
+     * @return the thread holding this lock, or <tt>null</tt> if it is free.
+     */
+    KThread getHolder() {
+        return lockHolder;
+    }
+
+    private LockProfiler.Profile profile;
+    private long holdStart;
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
             ThreadedKernel.scheduler.newThreadQueue(true);
@@ -0,0 +1,326 @@
+package nachos.threads;
+
+import nachos.machine.Histogram;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Optional instrumentation for <tt>Lock</tt>, <tt>Semaphore</tt> and
+ * <tt>Condition2</tt>. Once enabled (by setting
+ * <tt>ThreadedKernel.lockProfiler</tt> to <tt>true</tt> in
+ * <tt>nachos.conf</tt>), every primitive created afterwards is attached to a
+ * <tt>Profile</tt> keyed by its name, or by the place it was created if it
+ * has none, and all primitives with the same key share one profile.
+ * <p/>
+ * <p/>
+ * A profile counts acquisitions (for a condition variable, sleeps) and how
+ * many of them had to wait, and keeps histograms of wait time and, for locks,
+ * hold time, all in clock ticks. The profiles are printed by
+ * <tt>Stats.print()</tt>.
+ * <p/>
+ * <p/>
+ * The profiler also maintains a wait-for graph between threads: a thread
+ * waiting for a lock points to the lock's holder. Each time a thread starts
+ * waiting, the chain of holders is followed, and if it leads back to the
+ * waiting thread the deadlock is reported immediately. Semaphores and
+ * condition variables have no owner, so deadlocks through them are not
+ * detected.
+ */
+public class LockProfiler {
+    /**
+     * Prevent instantiation.
+     */
+    private LockProfiler() {
+    }
+
+    /**
+     * Start profiling synchronization primitives created from now on.
+     */
+    public static void enable() {
+        if (enabled)
+            return;
+
+        enabled = true;
+
+        Stats.addReporter(new Runnable() {
+            public void run() {
+                print();
+            }
+        });
+    }
+
+    /**
+     * Test whether profiling is enabled.
+     *
+     * @return    <tt>true</tt> if new primitives are being profiled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return the profile for a new primitive, or <tt>null</tt> if profiling
+     * is disabled.
+     *
+     * @param    kind    the kind of primitive, e.g. <tt>"Lock"</tt>.
+     * @param    name    the name given to the primitive, or <tt>null</tt> to
+     * key it by its creation site.
+     * @return the profile to attach to the primitive.
+     */
+    static Profile profile(String kind, String name) {
+        if (!enabled)
+            return null;
+
+        if (name == null)
+            name = creationSite();
+
+        String key = kind + " " + name;
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new Profile(key);
+            profiles.put(key, profile);
+        }
+
+        return profile;
+    }
+
+    /**
+     * Find the first caller outside the profiled primitives.
+     */
+    private static String creationSite() {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+
+        for (int i = 0; i < trace.length; i++) {
+            String className = trace[i].getClassName();
+            if (!className.equals(LockProfiler.class.getName()) &&
+                    !className.equals(Lock.class.getName()) &&
+                    !className.equals(Semaphore.class.getName()) &&
+                    !className.equals(Condition2.class.getName()))
+                return className + "." + trace[i].getMethodName() + ":"
+                        + trace[i].getLineNumber();
+        }
+
+        return "(unknown)";
+    }
+
+    /**
+     * Return the profile with the specified key, as printed by
+     * <tt>print()</tt>.
+     *
+     * @param    key    the kind of primitive, a space, and its name or
+     * creation site.
+     * @return the profile, or <tt>null</tt> if there is none.
+     */
+    public static Profile getProfile(String key) {
+        return profiles.get(key);
+    }
+
+    /**
+     * Return the number of deadlocks detected so far.
+     *
+     * @return the number of deadlocks detected.
+     */
+    public static int getNumDeadlocks() {
+        return numDeadlocks;
+    }
+
+    /**
+     * Print every profile that has been used, most total waiting first.
+     */
+    public static void print() {
+        ArrayList<Profile> sorted = new ArrayList<Profile>(profiles.values());
+        Collections.sort(sorted, new Comparator<Profile>() {
+            public int compare(Profile a, Profile b) {
+                long difference =
+                        b.waitTime.getTotal() - a.waitTime.getTotal();
+                if (difference != 0)
+                    return (difference < 0) ? -1 : 1;
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        System.out.println("Locks: profiled " + sorted.size()
+                + ", deadlocks " + numDeadlocks);
+
+        for (Profile profile : sorted) {
+            if (profile.acquisitions == 0)
+                continue;
+
+            System.out.println(profile.name + ": acquired "
+                    + profile.acquisitions + ", contended "
+                    + profile.contended);
+            if (profile.waitTime.getCount() != 0)
+                profile.waitTime.print();
+            if (profile.holdTime.getCount() != 0)
+                profile.holdTime.print();
+        }
+    }
+
+    /**
+     * Contention statistics shared by all primitives with the same key. All
+     * methods must be called with interrupts disabled.
+     */
+    public static class Profile {
+        Profile(String name) {
+            this.name = name;
+            waitTime = new Histogram("  wait");
+            holdTime = new Histogram("  hold");
+        }
+
+        /**
+         * Note that <i>thread</i> is about to block on a lock with this
+         * profile. Add an edge to the wait-for graph and check it for a
+         * cycle.
+         *
+         * @param    thread    the thread about to block.
+         * @param    lock    the lock it is waiting for.
+         */
+        void waiting(KThread thread, Lock lock) {
+            assert (Machine.interrupt().disabled());
+
+            waits.put(thread, new Wait(Machine.timer().getTime(), lock));
+
+            checkForDeadlock(thread, lock);
+        }
+
+        /**
+         * Note that <i>thread</i> has acquired a lock with this profile,
+         * after waiting for it if <tt>waiting()</tt> was called first.
+         *
+         * @param    thread    the thread that acquired the lock.
+         */
+        void acquired(KThread thread) {
+            assert (Machine.interrupt().disabled());
+
+            Wait wait = waits.remove(thread);
+            waited((wait == null) ? -1 :
+                    Machine.timer().getTime() - wait.start);
+        }
+
+        /**
+         * Count an acquisition of a primitive with this profile (for a
+         * condition variable, a return from <tt>sleep()</tt>).
+         *
+         * @param    ticks    the number of clock ticks spent waiting, or -1
+         * if the acquisition did not have to wait.
+         */
+        void waited(long ticks) {
+            acquisitions++;
+
+            if (ticks >= 0) {
+                contended++;
+                waitTime.record(ticks);
+            }
+        }
+
+        /**
+         * Note that a lock with this profile was released after being held
+         * for <i>ticks</i> clock ticks.
+         *
+         * @param    ticks    the length of time the lock was held.
+         */
+        void released(long ticks) {
+            holdTime.record(ticks);
+        }
+
+        /**
+         * Return the name of this profile.
+         *
+         * @return the kind of primitive, a space, and its name or creation
+         * site.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Return the number of acquisitions.
+         *
+         * @return the number of acquisitions.
+         */
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /**
+         * Return the number of acquisitions that had to wait.
+         *
+         * @return the number of contended acquisitions.
+         */
+        public long getContended() {
+            return contended;
+        }
+
+        /**
+         * Return the histogram of time spent waiting by contended
+         * acquisitions.
+         *
+         * @return the wait time histogram.
+         */
+        public Histogram getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Return the histogram of lock hold times. Empty for semaphores and
+         * condition variables.
+         *
+         * @return the hold time histogram.
+         */
+        public Histogram getHoldTime() {
+            return holdTime;
+        }
+
+        private String name;
+        private long acquisitions = 0;
+        private long contended = 0;
+        private Histogram waitTime;
+        private Histogram holdTime;
+    }
+
+    /**
+     * Follow the chain of lock holders from <i>lock</i>. Every edge is checked
+     * as it is added, so any cycle must pass through <i>thread</i>.
+     */
+    private static void checkForDeadlock(KThread thread, Lock lock) {
+        StringBuffer chain = new StringBuffer(thread.toString());
+
+        for (int steps = 0; lock != null && steps <= waits.size(); steps++) {
+            KThread holder = lock.getHolder();
+            if (holder == null)
+                return;
+
+            chain.append(" -> " + holder);
+
+            if (holder == thread) {
+                numDeadlocks++;
+                System.out.println("Deadlock detected: " + chain);
+                return;
+            }
+
+            Wait wait = waits.get(holder);
+            lock = (wait == null) ? null : wait.lock;
+        }
+    }
+
+    private static class Wait {
+        Wait(long start, Lock lock) {
+            this.start = start;
+            this.lock = lock;
+        }
+
+        long start;
+        Lock lock;
+    }
+
+    private static boolean enabled = false;
+    private static int numDeadlocks = 0;
+    private static HashMap<String, Profile> profiles =
+            new HashMap<String, Profile>();
+    private static HashMap<KThread, Wait> waits = new HashMap<KThread, Wait>();
+}
@@ -0,0 +1,210 @@
+package nachos.threads;
+
+import nachos.machine.Machine;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>:
+ * <p/>
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds or is
+ * waiting for the lock, and then join the readers holding it.
+ * <li><tt>acquireWrite()</tt>: atomically wait until no thread holds the lock,
+ * and then hold it exclusively.
+ * </ul>
+ * <p/>
+ * <p/>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers. When the last
+ * reader releases the lock it is handed to the next waiting writer; when a
+ * writer releases it, it is handed to the next waiting writer if there is
+ * one, and otherwise all waiting readers are admitted together.
+ * <p/>
+ * <p/>
+ * Waiting writers transfer priority through a queue created with
+ * <tt>transferPriority</tt> set. Its owner is the thread holding the write
+ * side, or, while readers hold the lock, the reader that most recently
+ * entered. A thread holding the read side must not try to acquire the lock
+ * again, because it would wait behind writers that are waiting for it.
+ *
+ * @see    nachos.threads.Lock
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading.
+     */
+    public void acquireRead() {
+        assert (!isWriteHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || waitingWriters > 0) {
+            readQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            admitReader(thread);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading.
+     */
+    public void releaseRead() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        assert (readers > 0);
+
+        if (--readers == 0 && waitingWriters > 0) {
+            waitingWriters--;
+            writer = writeQueue.nextThread();
+            writer.ready();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+        assert (!isWriteHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || readers > 0) {
+            waitingWriters++;
+            writeQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            writeQueue.acquire(thread);
+            writer = thread;
+        }
+
+        assert (writer == thread);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing, allowing other threads to
+     * acquire it.
+     */
+    public void releaseWrite() {
+        assert (isWriteHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        writer = null;
+
+        if (waitingWriters > 0) {
+            waitingWriters--;
+            writer = writeQueue.nextThread();
+            writer.ready();
+        } else {
+            KThread thread;
+            while ((thread = readQueue.nextThread()) != null) {
+                admitReader(thread);
+                thread.ready();
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+        return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Let a reader in. No writer may be waiting, so the reader can take over
+     * as the owner of the writers' queue and receive their priority if one
+     * arrives while it is reading.
+     */
+    private void admitReader(KThread thread) {
+        assert (writer == null && waitingWriters == 0);
+
+        readers++;
+        writeQueue.acquire(thread);
+    }
+
+    private static class ReadTest implements Runnable {
+        ReadTest(ReadWriteLock lock, int[] shared) {
+            this.lock = lock;
+            this.shared = shared;
+        }
+
+        public void run() {
+            lock.acquireRead();
+            int value = shared[0];
+            KThread.yield();
+            assert (shared[0] == value);
+            lock.releaseRead();
+        }
+
+        private ReadWriteLock lock;
+        private int[] shared;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        final ReadWriteLock lock = new ReadWriteLock();
+        final int[] shared = new int[1];
+
+        // two readers overlap; a writer arriving meanwhile waits for both
+        lock.acquireRead();
+        KThread reader = new KThread(new ReadTest(lock, shared));
+        reader.setName("reader").fork();
+        KThread writer = new KThread(new Runnable() {
+            public void run() {
+                lock.acquireWrite();
+                shared[0]++;
+                lock.releaseWrite();
+            }
+        });
+        writer.setName("writer").fork();
+        KThread.yield();
+        assert (shared[0] == 0);
+        lock.releaseRead();
+
+        reader.join();
+        writer.join();
+        assert (shared[0] == 1);
+
+        // a reader arriving while a writer holds the lock waits for it
+        lock.acquireWrite();
+        reader = new KThread(new ReadTest(lock, shared));
+        reader.setName("reader").fork();
+        KThread.yield();
+        shared[0]++;
+        lock.releaseWrite();
+        reader.join();
+        assert (shared[0] == 2);
+    }
+
+    private KThread writer = null;
+    private int readers = 0;
+    private int waitingWriters = 0;
+
+    private ThreadQueue writeQueue =
+            ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue readQueue =
+            ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -154,4 +154,92 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Get the time-slice length of the specified thread, in timer interrupts.
+     * Must be called with interrupts disabled.
+     *
+     * @param    thread    the thread to get the quantum of.
+     * @return the thread's quantum.
+     */
+    public int getQuantum(KThread thread) {
+        assert (Machine.interrupt().disabled());
+        return thread.quantum;
+    }
+
+    /**
+     * Set the time-slice length of the specified thread. The quantum will
+     * continue to adapt to the thread's behavior from this value. Must be
+     * called with interrupts disabled.
+     *
+     * @param    thread    the thread to set the quantum of.
+     * @param    quantum    the new quantum, between <tt>quantumMinimum</tt>
+     * and <tt>quantumMaximum</tt>.
+     */
+    public void setQuantum(KThread thread, int quantum) {
+        assert (Machine.interrupt().disabled());
+
+        assert (quantum >= quantumMinimum && quantum <= quantumMaximum);
+
+        thread.quantum = quantum;
+    }
+
+    /**
+     * Called by the timer interrupt handler to decide whether the specified
+     * (running) thread should be preempted. Must be called with interrupts
+     * disabled.
+     * <p/>
+     * <p/>
+     * The thread is preempted only once it has taken as many timer
+     * interrupts as its quantum since it was last dispatched; earlier ones are
+     * ignored. Quanta are counted in timer interrupts rather than clock ticks
+     * because the timer fires at irregular intervals, so a slice can only end
+     * at one of them. A thread preempted this way is CPU-bound, so its
+     * quantum is doubled (up to <tt>quantumMaximum</tt>) to cut the number of
+     * context switches it causes.
+     *
+     * @param    thread    the running thread.
+     * @return    <tt>true</tt> if the thread should yield.
+     */
+    public boolean preempt(KThread thread) {
+        assert (Machine.interrupt().disabled());
+
+        if (++thread.sliceInterrupts < thread.quantum)
+            return false;
+
+        thread.quantum = Math.min(thread.quantum * 2, quantumMaximum);
+        return true;
+    }
+
+    /**
+     * Called when the specified thread blocks. Must be called with interrupts
+     * disabled.
+     * <p/>
+     * <p/>
+     * A thread that blocks before using half of its quantum is interactive, so
+     * its quantum is halved (down to <tt>quantumMinimum</tt>). This keeps the
+     * slices of threads that mostly wait short, so they are preempted quickly
+     * if they turn CPU-bound.
+     *
+     * @param    thread    the thread that is blocking.
+     */
+    public void blocked(KThread thread) {
+        assert (Machine.interrupt().disabled());
+
+        if (thread.sliceInterrupts * 2 < thread.quantum)
+            thread.quantum = Math.max(thread.quantum / 2, quantumMinimum);
+    }
+
+    /**
+     * The quantum of a new thread, in timer interrupts.
+     */
+    public static final int quantumDefault = 2;
+    /**
+     * The shortest quantum a thread can have, in timer interrupts.
+     */
+    public static final int quantumMinimum = 1;
+    /**
+     * The longest quantum a thread can have, in timer interrupts.
+     */
+    public static final int quantumMaximum = 8;
 }
@@ -14,6 +14,12 @@ import nachos.machine.Machine;
  * </ul>
  * <p/>
  * <p/>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> do the same for <i>n</i> units at once. A
+ * waiter needing <i>n</i> units is woken only once all of them can be given to
+ * it, and waiters are served in order: while the first waiter cannot be
+ * satisfied, later waiters keep waiting even if they need fewer units.
+ * <p/>
+ * <p/>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -28,20 +34,53 @@ public class Semaphore {
      * @param    initialValue    the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+        this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name. The name is used only to identify
+     * the semaphore when profiling.
+     *
+     * @param    initialValue    the initial value of this semaphore.
+     * @param    name    the name of this semaphore, or <tt>null</tt>.
+     * @see    nachos.threads.LockProfiler
+     */
+    public Semaphore(int initialValue, String name) {
         value = initialValue;
+        profile = LockProfiler.profile("Semaphore", name);
     }
 
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+        P(1);
+    }
+
+    /**
+     * Atomically wait for this semaphore to reach at least <i>n</i> and
+     * decrement it by <i>n</i>.
+     *
+     * @param    n    the number of units to take. Must be positive.
+     */
+    public void P(int n) {
+        assert (n > 0);
+
         boolean intStatus = Machine.interrupt().disable();
 
-        if (value == 0) {
-            waitQueue.waitForAccess(KThread.currentThread());
-            KThread.sleep();
+        if (first == null && value >= n) {
+            value -= n;
+            if (profile != null)
+                profile.waited(-1);
         } else {
-            value--;
+            long start = Machine.timer().getTime();
+            KThread thread = KThread.currentThread();
+            thread.semaphoreNeeds = n;
+            waitQueue.waitForAccess(thread);
+            grant();
+            KThread.sleep();
+            if (profile != null)
+                profile.waited(Machine.timer().getTime() - start);
         }
 
         Machine.interrupt().restore(intStatus);
@@ -52,18 +91,53 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+        V(1);
+    }
+
+    /**
+     * Atomically increment this semaphore by <i>n</i>, and wake up every
+     * waiting thread whose units are now available.
+     *
+     * @param    n    the number of units to add. Must be positive.
+     */
+    public void V(int n) {
+        assert (n > 0);
+
         boolean intStatus = Machine.interrupt().disable();
 
-        KThread thread = waitQueue.nextThread();
-        if (thread != null) {
-            thread.ready();
-        } else {
-            value++;
-        }
+        value += n;
+        grant();
 
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Give units to waiting threads, in order, for as long as the first one
+     * can be satisfied. A waiter is taken off the wait queue only once there
+     * are units to give, so the scheduler still picks which thread is woken.
+     * If it needs more than there are, it is kept in <tt>first</tt>, and
+     * later waiters keep waiting behind it.
+     */
+    private void grant() {
+        while (true) {
+            if (first == null) {
+                if (value == 0)
+                    return;
+
+                first = waitQueue.nextThread();
+                if (first == null)
+                    return;
+            }
+
+            if (value < first.semaphoreNeeds)
+                return;
+
+            value -= first.semaphoreNeeds;
+            first.ready();
+            first = null;
+        }
+    }
+
     private static class PingTest implements Runnable {
         PingTest(Semaphore ping, Semaphore pong) {
             this.ping = ping;
@@ -94,9 +168,38 @@ public class Semaphore {
             ping.V();
             pong.P();
         }
+
+        // a batch waiter holds up later waiters until it can be satisfied
+        final Semaphore units = new Semaphore(1);
+        final int[] order = new int[2];
+        final int[] done = new int[1];
+        KThread big = new KThread(new Runnable() {
+            public void run() {
+                units.P(3);
+                order[done[0]++] = 3;
+            }
+        });
+        big.setName("P(3)").fork();
+        KThread.yield();
+        KThread small = new KThread(new Runnable() {
+            public void run() {
+                units.P(1);
+                order[done[0]++] = 1;
+            }
+        });
+        small.setName("P(1)").fork();
+        KThread.yield();
+        assert (done[0] == 0);
+
+        units.V(3);
+        big.join();
+        small.join();
+        assert (order[0] == 3 && order[1] == 1);
     }
 
     private int value;
+    private KThread first = null;
+    private LockProfiler.Profile profile;
     private ThreadQueue waitQueue =
             ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -12,7 +12,7 @@ public class SynchList {
     public SynchList() {
         list = new LinkedList();
         lock = new Lock();
-        listEmpty = new Condition(lock);
+        listEmpty = new Condition2(lock);
     }
 
     /**
@@ -81,6 +81,6 @@ public class SynchList {
 
     private LinkedList list;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
 }
 
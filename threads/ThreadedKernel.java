@@ -14,8 +14,9 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.
+     * Initialize this kernel. Creates a scheduler, the first thread, an alarm
+     * and a deferred work queue, and enables interrupts. Creates a file system
+     * if necessary.
      */
     public void initialize(String[] args) {
         // set scheduler
@@ -31,11 +32,23 @@ public class ThreadedKernel extends Kernel {
         else
             fileSystem = null;
 
+        // profile synchronization primitives if requested
+        if (Config.getString("ThreadedKernel.lockProfiler") != null
+                && Config.getBoolean("ThreadedKernel.lockProfiler"))
+            LockProfiler.enable();
+
         // start threading
         new KThread(null);
 
         alarm = new Alarm();
 
+        deferredWork = new DeferredWork("bottom half", 64);
+        Stats.addReporter(new Runnable() {
+            public void run() {
+                deferredWork.print();
+            }
+        });
+
         Machine.interrupt().enable();
     }
 
@@ -49,6 +62,13 @@ public class ThreadedKernel extends Kernel {
         KThread.selfTest();
         Semaphore.selfTest();
         SynchList.selfTest();
+        Communicator.selfTest();
+        Channel.selfTest();
+        ReadWriteLock.selfTest();
+        Barrier.selfTest();
+        CountDownLatch.selfTest();
+        WorkerPool.selfTest();
+        DeferredWork.selfTest();
         Boat.selfTest();
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
@@ -77,6 +97,11 @@ public class ThreadedKernel extends Kernel {
      * Globally accessible reference to the alarm.
      */
     public static Alarm alarm = null;
+    /**
+     * Globally accessible reference to the deferred work queue, used by
+     * interrupt handlers to defer work to a kernel thread.
+     */
+    public static DeferredWork deferredWork = null;
     /**
      * Globally accessible reference to the file system.
      */
@@ -0,0 +1,184 @@
+package nachos.threads;
+
+/**
+ * A fixed pool of kernel threads that run jobs submitted to it. Jobs wait in a
+ * bounded <tt>Channel</tt> until a worker is free, so submitting work does not
+ * create a new <tt>KThread</tt>, and at most one job per worker runs at a
+ * time. A producer that finds the queue full blocks in <tt>submit()</tt>, or
+ * gives up in <tt>trySubmit()</tt>.
+ * <p/>
+ * <p/>
+ * Each submitted job returns a <tt>Job</tt> handle that can be used to wait
+ * for the job to finish.
+ *
+ * @see    nachos.threads.Channel
+ */
+public class WorkerPool {
+    /**
+     * Allocate a new pool and fork its workers.
+     *
+     * @param    name    the name of the pool, used to name its workers.
+     * @param    numWorkers    the number of worker threads. Must be
+     * positive.
+     * @param    queueCapacity    the maximum number of jobs that can wait for
+     * a worker. Must be positive.
+     */
+    public WorkerPool(String name, int numWorkers, int queueCapacity) {
+        assert (numWorkers > 0);
+
+        queue = new Channel<Job>(queueCapacity);
+        workers = new KThread[numWorkers];
+
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = new KThread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+            workers[i].setName(name + " worker " + i).fork();
+        }
+    }
+
+    /**
+     * Submit a job, blocking until there is room in the queue if necessary.
+     * Must not be called after <tt>shutdown()</tt>.
+     *
+     * @param    task    the code for the job to run.
+     * @return a handle for the job.
+     */
+    public Job submit(Runnable task) {
+        assert (!shutdown);
+
+        Job job = new Job(task);
+        queue.put(job);
+
+        return job;
+    }
+
+    /**
+     * Submit a job if there is room for it in the queue, without blocking.
+     * Must not be called after <tt>shutdown()</tt>.
+     *
+     * @param    task    the code for the job to run.
+     * @return a handle for the job, or <tt>null</tt> if the queue is full.
+     */
+    public Job trySubmit(Runnable task) {
+        assert (!shutdown);
+
+        Job job = new Job(task);
+
+        return queue.put(job, 0) ? job : null;
+    }
+
+    /**
+     * Let the workers finish every job already submitted, then wait for them
+     * to exit.
+     */
+    public void shutdown() {
+        assert (!shutdown);
+
+        shutdown = true;
+
+        for (int i = 0; i < workers.length; i++)
+            queue.put(stop);
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].join();
+    }
+
+    /**
+     * Return the number of worker threads in this pool.
+     *
+     * @return the number of workers.
+     */
+    public int getNumWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Return the number of jobs that have finished running.
+     *
+     * @return the number of completed jobs.
+     */
+    public long getNumCompleted() {
+        return numCompleted;
+    }
+
+    private void work() {
+        Job job;
+        while ((job = queue.take()) != stop) {
+            job.task.run();
+            numCompleted++;
+            job.done.countDown();
+        }
+    }
+
+    /**
+     * A handle for a job submitted to a <tt>WorkerPool</tt>.
+     */
+    public static class Job {
+        Job(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Wait for this job to finish running. Returns immediately if it
+         * already has. Must not be called by a worker of the same pool.
+         */
+        public void join() {
+            done.await();
+        }
+
+        /**
+         * Test whether this job has finished running.
+         *
+         * @return <tt>true</tt> if the job has finished.
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private Runnable task;
+        private CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        WorkerPool pool = new WorkerPool("test", 2, 2);
+        final int[] active = new int[1];
+        final int[] maxActive = new int[1];
+
+        // each job waits for another, so every worker is provably busy at once
+        final Barrier together = new Barrier(pool.getNumWorkers());
+        Job[] jobs = new Job[6];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = pool.submit(new Runnable() {
+                public void run() {
+                    active[0]++;
+                    maxActive[0] = Math.max(maxActive[0], active[0]);
+                    together.await();
+                    active[0]--;
+                }
+            });
+        }
+
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i].join();
+            assert (jobs[i].isDone());
+        }
+
+        assert (pool.getNumCompleted() == jobs.length);
+        assert (maxActive[0] == pool.getNumWorkers());
+
+        pool.shutdown();
+    }
+
+    private Channel<Job> queue;
+    private KThread[] workers;
+    private boolean shutdown = false;
+    private long numCompleted = 0;
+
+    private final Job stop = new Job(null);
+}
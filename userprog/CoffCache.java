@@ -0,0 +1,472 @@
+package nachos.userprog;
+
+import nachos.machine.Coff;
+import nachos.machine.CoffSection;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel cache of parsed executables. The first time an executable is run,
+ * its headers are parsed by a <tt>Coff</tt> loader, and the contents of its
+ * initialized pages are kept as they are read. Running it again takes the
+ * headers and any page read before from the cache, without parsing the file
+ * again.
+ * <p/>
+ * <p/>
+ * The cache holds at most a fixed number of bytes, counting each cached page
+ * and each section header, and the least recently run executables are
+ * evicted to stay within it. An evicted executable that is still being run
+ * keeps working, but reads its pages from the file again.
+ * <p/>
+ * <p/>
+ * Each executable's file is opened once, when it is first parsed, and kept
+ * open until it has been evicted and is no longer being run, so its pages are
+ * always read from the same file its headers came from. The stub file system
+ * allows only a few open files, so at most <tt>maxIdleFiles</tt> executables
+ * that nobody is running are kept, and the least recently run of them is
+ * evicted to make way for another.
+ * <p/>
+ * <p/>
+ * The stub file system has no modification times, so executables are keyed
+ * by name only: a process that creates, writes or removes a file invalidates
+ * its entry, and the next run parses it afresh.
+ * <p/>
+ * <p/>
+ * Hits, misses and evictions are printed by <tt>print()</tt>; the kernel's
+ * cache reports them in <tt>Stats.print()</tt>.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new, empty cache.
+     *
+     * @param    budget    the maximum number of bytes to hold.
+     */
+    public CoffCache(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Return the executable with the specified name, parsing it if it is not
+     * cached, and count a new user of it.
+     *
+     * @param    name    the name of the file containing the executable.
+     * @return the executable, or <tt>null</tt> if the file cannot be opened
+     * or is not executable.
+     */
+    public Executable attach(String name) {
+        lock.acquire();
+
+        Executable executable = executables.get(name);
+        if (executable != null) {
+            numHits++;
+            if (executable.users == 0)
+                numIdle--;
+        } else {
+            numMisses++;
+
+            executable = new Executable(name);
+            if (!executable.open()) {
+                lock.release();
+                return null;
+            }
+
+            makeRoom(executable.overhead, null);
+            executables.put(name, executable);
+            size += executable.overhead;
+        }
+
+        executable.users++;
+
+        lock.release();
+
+        return executable;
+    }
+
+    /**
+     * Count another user of an executable returned by <tt>attach()</tt>.
+     *
+     * @param    executable    the executable.
+     */
+    public void attach(Executable executable) {
+        lock.acquire();
+
+        assert (executable.users > 0);
+        executable.users++;
+
+        lock.release();
+    }
+
+    /**
+     * Drop a user of an executable. When the last user of an executable that
+     * is no longer cached is gone, its file is closed.
+     *
+     * @param    executable    the executable.
+     */
+    public void detach(Executable executable) {
+        lock.acquire();
+
+        assert (executable.users > 0);
+        if (--executable.users == 0) {
+            if (!executable.cached)
+                executable.close();
+            else if (++numIdle > maxIdleFiles)
+                evictIdle();
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Forget a file that may be about to change. Processes already running it
+     * keep reading the file they opened.
+     *
+     * @param    name    the name of the file.
+     */
+    public void invalidate(String name) {
+        lock.acquire();
+
+        Executable executable = executables.remove(name);
+        if (executable != null)
+            drop(executable);
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of bytes held by the cache.
+     *
+     * @return the size of the cache.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Print the cache's statistics.
+     */
+    public void print() {
+        System.out.println("COFF cache: hits " + numHits + ", misses "
+                + numMisses + ", evicted " + numEvicted + ", size " + size
+                + "/" + budget);
+    }
+
+    /**
+     * Evict the least recently run executables, other than <i>keep</i>,
+     * until <i>bytes</i> more fit within the budget.
+     *
+     * @return    <tt>true</tt> if there is room.
+     */
+    private boolean makeRoom(int bytes, Executable keep) {
+        Iterator<Executable> i = executables.values().iterator();
+        while (size + bytes > budget && i.hasNext()) {
+            Executable executable = i.next();
+            if (executable == keep)
+                continue;
+
+            i.remove();
+            drop(executable);
+            numEvicted++;
+        }
+
+        return (size + bytes <= budget);
+    }
+
+    /**
+     * Evict the least recently run executable that nobody is running.
+     */
+    private void evictIdle() {
+        Iterator<Executable> i = executables.values().iterator();
+        while (i.hasNext()) {
+            Executable executable = i.next();
+            if (executable.users == 0) {
+                i.remove();
+                drop(executable);
+                numEvicted++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop counting a removed executable and release its cached pages. Its
+     * file is closed unless it is still being run.
+     */
+    private void drop(Executable executable) {
+        size -= executable.overhead + executable.numCached * pageSize;
+
+        executable.cached = false;
+        executable.numCached = 0;
+        Arrays.fill(executable.pages, null);
+
+        if (executable.users == 0) {
+            numIdle--;
+            executable.close();
+        }
+    }
+
+    /**
+     * A parsed executable.
+     */
+    public class Executable {
+        Executable(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the name of the executable's file.
+         *
+         * @return the name of the file.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Return the program entry point.
+         *
+         * @return the program entry point.
+         */
+        public int getEntryPoint() {
+            return entryPoint;
+        }
+
+        /**
+         * Return the number of sections in the executable.
+         *
+         * @return the number of sections.
+         */
+        public int getNumSections() {
+            return sections.length;
+        }
+
+        /**
+         * Return a section of the executable. Only its header may be used;
+         * its pages must be loaded with <tt>loadPage()</tt>.
+         *
+         * @param    s    the section number.
+         * @return the section.
+         */
+        public CoffSection getSection(int s) {
+            return sections[s];
+        }
+
+        /**
+         * Return the section of the executable holding a page.
+         *
+         * @param    vpn    the virtual page number.
+         * @return the section, or <tt>null</tt> if the page is not part of
+         * the executable.
+         */
+        public CoffSection findSection(int vpn) {
+            if (vpn < 0 || vpn >= pageSections.length)
+                return null;
+
+            return pageSections[vpn];
+        }
+
+        /**
+         * Load a page of the executable into a frame, from the cache if it
+         * has been read before, and otherwise from the file, caching it.
+         * Pages of uninitialized sections are zero-filled.
+         *
+         * @param    vpn    the virtual page number.
+         * @param    ppn    the frame to load the page into.
+         * @return    <tt>true</tt> if the page was loaded.
+         */
+        public boolean loadPage(int vpn, int ppn) {
+            CoffSection section = findSection(vpn);
+            assert (section != null);
+
+            byte[] memory = Machine.processor().getMemory();
+            int paddr = ppn * pageSize;
+
+            if (!section.isInitialzed()) {
+                Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+                return true;
+            }
+
+            lock.acquire();
+            byte[] page = pages[vpn];
+            lock.release();
+
+            if (page != null) {
+                System.arraycopy(page, 0, memory, paddr, pageSize);
+                return true;
+            }
+
+            // read the file holding only this executable's lock
+            fileLock.acquire();
+
+            coff.getSection(sectionNumbers[vpn])
+                    .loadPage(vpn - section.getFirstVPN(), ppn);
+
+            fileLock.release();
+
+            lock.acquire();
+            if (cached && pages[vpn] == null && makeRoom(pageSize, this)) {
+                pages[vpn] = new byte[pageSize];
+                System.arraycopy(memory, paddr, pages[vpn], 0, pageSize);
+                numCached++;
+                size += pageSize;
+            }
+            lock.release();
+
+            return true;
+        }
+
+        /**
+         * Open and parse the file.
+         */
+        private boolean open() {
+            Lib.debug(dbgProcess, "CoffCache.open(\"" + name + "\")");
+
+            OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+            if (file == null)
+                return false;
+
+            try {
+                coff = new Coff(file);
+            } catch (EOFException e) {
+                file.close();
+                return false;
+            }
+
+            entryPoint = coff.getEntryPoint();
+            sections = new CoffSection[coff.getNumSections()];
+
+            int numPages = 0;
+            for (int s = 0; s < sections.length; s++) {
+                sections[s] = coff.getSection(s);
+                numPages = Math.max(numPages,
+                        sections[s].getFirstVPN() + sections[s].getLength());
+            }
+
+            pageSections = new CoffSection[numPages];
+            sectionNumbers = new int[numPages];
+            for (int s = 0; s < sections.length; s++) {
+                for (int i = 0; i < sections[s].getLength(); i++) {
+                    pageSections[sections[s].getFirstVPN() + i] = sections[s];
+                    sectionNumbers[sections[s].getFirstVPN() + i] = s;
+                }
+            }
+
+            pages = new byte[numPages][];
+            overhead = sections.length * CoffSection.headerLength;
+
+            return true;
+        }
+
+        private void close() {
+            if (coff != null) {
+                coff.close();
+                coff = null;
+            }
+        }
+
+        private String name;
+        private Coff coff = null;
+        private int entryPoint;
+        private CoffSection[] sections = null;
+        private CoffSection[] pageSections;
+        private int[] sectionNumbers;
+        private byte[][] pages;
+        private int numCached = 0;
+        private int overhead;
+        private boolean cached = true;
+        private int users = 0;
+        private Lock fileLock = new Lock();
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        FrameAllocator allocator = UserKernel.frameAllocator;
+        Object owner = new Object();
+        CoffCache cache = new CoffCache(4 * pageSize);
+
+        Executable halt = cache.attach("halt.coff");
+        assert (halt != null && cache.attach("nonexistent.coff") == null);
+
+        // a page read through the file is served from the cache afterwards
+        int ppn = allocator.allocate(owner);
+        assert (halt.loadPage(0, ppn));
+        byte[] page = new byte[pageSize];
+        System.arraycopy(Machine.processor().getMemory(), ppn * pageSize,
+                page, 0, pageSize);
+        cache.detach(halt);
+        assert (halt.coff != null);
+
+        Executable again = cache.attach("halt.coff");
+        assert (again == halt);
+        assert (halt.loadPage(0, ppn));
+        assert (Arrays.equals(page, Arrays.copyOfRange(
+                Machine.processor().getMemory(), ppn * pageSize,
+                (ppn + 1) * pageSize)));
+
+        // another executable pushes it out once the budget is exceeded
+        Executable cat = cache.attach("cat.coff");
+        for (int vpn = 0; vpn < 4; vpn++)
+            assert (cat.loadPage(vpn, ppn));
+        assert (cache.getSize() <= 4 * pageSize);
+        Executable reparsed = cache.attach("halt.coff");
+        assert (reparsed != null && reparsed != halt);
+
+        // the evicted executable keeps its file until its last user is gone
+        assert (halt.coff != null);
+        cache.detach(halt);
+        assert (halt.coff == null);
+
+        cache.detach(reparsed);
+        cache.detach(cat);
+        allocator.free(ppn, owner);
+
+        // forgetting the idle executables closes their files
+        cache.invalidate("halt.coff");
+        cache.invalidate("cat.coff");
+        assert (reparsed.coff == null && cat.coff == null);
+
+        // only a few idle executables keep their files open
+        String[] names = {"echo.coff", "cp.coff", "mv.coff", "rm.coff",
+                "sort.coff"};
+        Executable[] idle = new Executable[names.length];
+        cache = new CoffCache(64 * pageSize);
+        for (int i = 0; i < names.length; i++) {
+            idle[i] = cache.attach(names[i]);
+            cache.detach(idle[i]);
+        }
+        assert (idle[0].coff == null && idle[1].coff != null);
+        Executable echo = cache.attach(names[0]);
+        assert (echo != idle[0]);
+        cache.detach(echo);
+        for (int i = 0; i < names.length; i++)
+            cache.invalidate(names[i]);
+    }
+
+    private int budget;
+    private int size = 0;
+    private int numIdle = 0;
+    private long numHits = 0, numMisses = 0, numEvicted = 0;
+
+    private LinkedHashMap<String, Executable> executables =
+            new LinkedHashMap<String, Executable>(16, 0.75f, true);
+    private Lock lock = new Lock();
+
+    /**
+     * The maximum number of cached executables that nobody is running, each
+     * of which keeps its file open.
+     */
+    public static final int maxIdleFiles = 4;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,293 @@
+package nachos.userprog;
+
+import nachos.machine.Machine;
+
+import java.util.HashMap;
+
+/**
+ * Hands out frames of physical memory to processes, using a buddy system.
+ * Memory is managed in aligned blocks of 2<sup><i>order</i></sup> frames.
+ * Each order has a free list, so a single frame is found in constant time
+ * when one is free, and a larger block is split in half until it has the
+ * requested size. When a block is freed it is merged with its buddy, as long
+ * as the buddy is free too, so contiguous runs are rebuilt as processes
+ * release memory.
+ * <p/>
+ * <p/>
+ * A block can be shared: each owner using it, normally a process, holds a
+ * reference to it and is charged for it, and the block is returned to the
+ * free lists when the last reference is dropped. This lets processes count
+ * their frames and share them copy-on-write.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param    numFrames    the number of frames to manage. Must be
+     * positive.
+     */
+    public FrameAllocator(int numFrames) {
+        assert (numFrames > 0);
+
+        this.numFrames = numFrames;
+
+        maxOrder = 0;
+        while ((2 << maxOrder) <= numFrames)
+            maxOrder++;
+
+        order = new int[numFrames];
+        isFree = new boolean[numFrames];
+        isAllocated = new boolean[numFrames];
+        next = new int[numFrames];
+        prev = new int[numFrames];
+        references = new int[numFrames];
+
+        freeLists = new int[maxOrder + 1];
+        for (int k = 0; k <= maxOrder; k++)
+            freeLists[k] = -1;
+
+        // cover the frames with the largest aligned blocks that fit
+        int ppn = 0;
+        while (ppn < numFrames) {
+            int k = maxOrder;
+            while (ppn % (1 << k) != 0 || ppn + (1 << k) > numFrames)
+                k--;
+
+            push(ppn, k);
+            ppn += 1 << k;
+        }
+
+        numFree = numFrames;
+    }
+
+    /**
+     * Allocate a single frame, with one reference held by <i>owner</i>.
+     *
+     * @param    owner    the owner to charge the frame to.
+     * @return the physical page number of the frame, or -1 if memory is
+     * full.
+     */
+    public int allocate(Object owner) {
+        return allocateBlock(owner, 0);
+    }
+
+    /**
+     * Allocate an aligned block of 2<sup><i>order</i></sup> contiguous
+     * frames, with one reference held by <i>owner</i>.
+     *
+     * @param    owner    the owner to charge the block to.
+     * @param    blockOrder    the base 2 logarithm of the number of frames.
+     * @return the physical page number of the first frame, or -1 if there
+     * is no free block that large.
+     */
+    public int allocateBlock(Object owner, int blockOrder) {
+        assert (blockOrder >= 0);
+
+        if (blockOrder > maxOrder)
+            return -1;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int k = blockOrder;
+        while (k <= maxOrder && freeLists[k] == -1)
+            k++;
+
+        int ppn = -1;
+        if (k <= maxOrder) {
+            ppn = freeLists[k];
+            remove(ppn);
+
+            // split, returning the upper halves to the free lists
+            while (k > blockOrder) {
+                k--;
+                push(ppn + (1 << k), k);
+            }
+
+            order[ppn] = blockOrder;
+            isAllocated[ppn] = true;
+            references[ppn] = 1;
+
+            numFree -= 1 << blockOrder;
+            charge(owner, 1 << blockOrder);
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return ppn;
+    }
+
+    /**
+     * Add a reference to an allocated block on behalf of another owner, and
+     * charge it for the block.
+     *
+     * @param    ppn    the physical page number of the block's first frame.
+     * @param    owner    the owner that now shares the block.
+     */
+    public void share(int ppn, Object owner) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        assert (ppn >= 0 && ppn < numFrames && isAllocated[ppn]);
+
+        references[ppn]++;
+        charge(owner, 1 << order[ppn]);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of references held to an allocated block.
+     *
+     * @param    ppn    the physical page number of the block's first frame.
+     * @return the number of owners sharing the block.
+     */
+    public int getReferences(int ppn) {
+        assert (ppn >= 0 && ppn < numFrames && isAllocated[ppn]);
+
+        return references[ppn];
+    }
+
+    /**
+     * Drop <i>owner</i>'s reference to a block returned by
+     * <tt>allocate()</tt> or <tt>allocateBlock()</tt>. When the last
+     * reference is dropped, the block is freed, and merged with its buddy
+     * while possible.
+     *
+     * @param    ppn    the physical page number of the block's first frame.
+     * @param    owner    the owner giving up the block.
+     */
+    public void free(int ppn, Object owner) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        assert (ppn >= 0 && ppn < numFrames && isAllocated[ppn]);
+
+        int k = order[ppn];
+        charge(owner, -(1 << k));
+
+        if (--references[ppn] > 0) {
+            Machine.interrupt().restore(intStatus);
+            return;
+        }
+
+        isAllocated[ppn] = false;
+        numFree += 1 << k;
+
+        while (k < maxOrder) {
+            int buddy = ppn ^ (1 << k);
+            if (buddy >= numFrames || !isFree[buddy] || order[buddy] != k)
+                break;
+
+            remove(buddy);
+            ppn = Math.min(ppn, buddy);
+            k++;
+        }
+
+        push(ppn, k);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return the number of free frames.
+     */
+    public int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Return the number of frames charged to an owner.
+     *
+     * @param    owner    the owner.
+     * @return the number of frames it holds.
+     */
+    public int getNumAllocated(Object owner) {
+        Integer count = charges.get(owner);
+
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    private void charge(Object owner, int frames) {
+        int count = getNumAllocated(owner) + frames;
+
+        if (count == 0)
+            charges.remove(owner);
+        else
+            charges.put(owner, new Integer(count));
+    }
+
+    private void push(int ppn, int k) {
+        order[ppn] = k;
+        isFree[ppn] = true;
+
+        prev[ppn] = -1;
+        next[ppn] = freeLists[k];
+        if (freeLists[k] != -1)
+            prev[freeLists[k]] = ppn;
+        freeLists[k] = ppn;
+    }
+
+    private void remove(int ppn) {
+        assert (isFree[ppn]);
+
+        isFree[ppn] = false;
+
+        if (prev[ppn] != -1)
+            next[prev[ppn]] = next[ppn];
+        else
+            freeLists[order[ppn]] = next[ppn];
+
+        if (next[ppn] != -1)
+            prev[next[ppn]] = prev[ppn];
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        FrameAllocator allocator = new FrameAllocator(12);
+        Object a = new Object(), b = new Object();
+
+        // 12 frames are covered by a block of 8 and a block of 4
+        assert (allocator.allocateBlock(a, 3) == 0);
+        assert (allocator.allocateBlock(a, 3) == -1);
+
+        int first = allocator.allocate(b);
+        int second = allocator.allocate(b);
+        assert (first >= 8 && second >= 8 && first != second);
+        assert (allocator.getNumAllocated(a) == 8);
+        assert (allocator.getNumAllocated(b) == 2);
+        assert (allocator.getNumFree() == 2);
+
+        // a shared frame is freed only when both owners drop it
+        allocator.share(first, a);
+        assert (allocator.getReferences(first) == 2);
+        assert (allocator.getNumAllocated(a) == 9);
+        allocator.free(first, b);
+        assert (allocator.getNumFree() == 2);
+
+        // freeing both single frames rebuilds the block of 4
+        allocator.free(first, a);
+        allocator.free(second, b);
+        assert (allocator.allocateBlock(b, 2) == 8);
+
+        allocator.free(0, a);
+        allocator.free(8, b);
+        assert (allocator.getNumAllocated(a) == 0);
+        assert (allocator.getNumFree() == 12);
+        assert (allocator.allocateBlock(a, 3) == 0);
+    }
+
+    private int numFrames;
+    private int maxOrder;
+    private int numFree;
+
+    private int[] order;
+    private boolean[] isFree;
+    private boolean[] isAllocated;
+    private int[] next, prev;
+    private int[] references;
+    private int[] freeLists;
+
+    private HashMap<Object, Integer> charges = new HashMap<Object, Integer>();
+}
@@ -0,0 +1,139 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.ThreadQueue;
+import nachos.threads.ThreadedKernel;
+
+import java.util.HashMap;
+
+/**
+ * The kernel side of the <tt>futex_wait()</tt> and <tt>futex_wake()</tt>
+ * syscalls. A futex is a word of user memory. User code manipulates it
+ * without entering the kernel while there is no contention, and asks the
+ * kernel to sleep on it or to wake its sleepers only when there is.
+ * <p/>
+ * <p/>
+ * Sleeping threads wait in a queue keyed by the physical address of the
+ * word, so processes sharing a page also share its futexes. A queue exists
+ * only while some thread is waiting on it.
+ */
+public class FutexTable {
+    /**
+     * Allocate a new, empty futex table.
+     */
+    public FutexTable() {
+    }
+
+    /**
+     * Atomically check that the word at physical address <i>paddr</i> still
+     * holds <i>expected</i>, and if so put the current thread to sleep until
+     * <tt>wake()</tt> is called on the same address.
+     *
+     * @param    paddr    the word-aligned physical address of the futex.
+     * @param    expected    the value the caller last saw in the futex.
+     * @return    <tt>true</tt> if the thread slept and was woken, or
+     * <tt>false</tt> if the futex no longer held <i>expected</i>.
+     */
+    public boolean wait(int paddr, int expected) {
+        assert (paddr % 4 == 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        byte[] memory = Machine.processor().getMemory();
+        boolean sleep = (Lib.bytesToInt(memory, paddr) == expected);
+
+        if (sleep) {
+            Waiters waiters = queues.get(paddr);
+            if (waiters == null) {
+                waiters = new Waiters();
+                queues.put(paddr, waiters);
+            }
+
+            waiters.count++;
+            waiters.queue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return sleep;
+    }
+
+    /**
+     * Wake up at most <i>count</i> threads sleeping on the futex at physical
+     * address <i>paddr</i>.
+     *
+     * @param    paddr    the word-aligned physical address of the futex.
+     * @param    count    the maximum number of threads to wake.
+     * @return the number of threads woken.
+     */
+    public int wake(int paddr, int count) {
+        assert (paddr % 4 == 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int woken = 0;
+
+        Waiters waiters = queues.get(paddr);
+        if (waiters != null) {
+            while (woken < count && waiters.count > 0) {
+                waiters.queue.nextThread().ready();
+                waiters.count--;
+                woken++;
+            }
+
+            if (waiters.count == 0)
+                queues.remove(paddr);
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return woken;
+    }
+
+    private static class Waiters {
+        ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+        int count = 0;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        final FutexTable table = new FutexTable();
+        final byte[] memory = Machine.processor().getMemory();
+        final int paddr = memory.length - 4;
+        final int[] woken = new int[1];
+
+        Lib.bytesFromInt(memory, paddr, 1);
+        boolean slept = table.wait(paddr, 0);
+        assert (!slept);
+
+        for (int i = 0; i < 2; i++) {
+            new KThread(new Runnable() {
+                public void run() {
+                    boolean slept = table.wait(paddr, 1);
+                    assert (slept);
+                    woken[0]++;
+                }
+            }).setName("futex waiter").fork();
+        }
+        KThread.yield();
+
+        int numWoken = table.wake(paddr, 1);
+        KThread.yield();
+        assert (numWoken == 1 && woken[0] == 1);
+
+        numWoken = table.wake(paddr, 5);
+        KThread.yield();
+        assert (numWoken == 1 && woken[0] == 2);
+        numWoken = table.wake(paddr, 1);
+        assert (numWoken == 0);
+
+        Lib.bytesFromInt(memory, paddr, 0);
+    }
+
+    private HashMap<Integer, Waiters> queues = new HashMap<Integer, Waiters>();
+}
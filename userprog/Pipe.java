@@ -0,0 +1,242 @@
+package nachos.userprog;
+
+import nachos.machine.OpenFile;
+import nachos.threads.Condition2;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+
+/**
+ * A one-way stream of bytes between processes, held in a fixed-size kernel
+ * ring buffer. Bytes written to the pipe's write end can be read, in order,
+ * from its read end. Both ends are <tt>OpenFile</tt> objects, and each end
+ * can be open any number of times.
+ * <p/>
+ * <p/>
+ * Reading from an empty pipe blocks until some bytes are written, and then
+ * returns as many as are available; once every write end is closed, it
+ * returns 0. Writing to a full pipe blocks until there is room, and a write
+ * returns only once all of its bytes are in the pipe, or once every read end
+ * is closed. An end opened as non-blocking returns -1 instead of blocking
+ * before any byte is transferred.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe.
+     *
+     * @param    capacity    the number of bytes the pipe can hold. Must be
+     * positive.
+     */
+    public Pipe(int capacity) {
+        assert (capacity > 0);
+
+        buffer = new byte[capacity];
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+    }
+
+    /**
+     * Open the read end of this pipe.
+     *
+     * @param    blocking    <tt>false</tt> if reading the end should never
+     * block.
+     * @return a file that reads from this pipe.
+     */
+    public OpenFile openForReading(boolean blocking) {
+        lock.acquire();
+        readers++;
+        lock.release();
+
+        return new File(true, blocking);
+    }
+
+    /**
+     * Open the write end of this pipe.
+     *
+     * @param    blocking    <tt>false</tt> if writing the end should never
+     * block.
+     * @return a file that writes to this pipe.
+     */
+    public OpenFile openForWriting(boolean blocking) {
+        lock.acquire();
+        writers++;
+        lock.release();
+
+        return new File(false, blocking);
+    }
+
+    /**
+     * Test whether a file is an end of a pipe.
+     *
+     * @param    file    the file.
+     * @return    <tt>true</tt> if <i>file</i> was opened by a pipe.
+     */
+    public static boolean isPipe(OpenFile file) {
+        return (file instanceof File);
+    }
+
+    /**
+     * Open another copy of an end of a pipe, which must be closed separately.
+     *
+     * @param    file    an end of a pipe, that is still open.
+     * @return the new copy.
+     */
+    public static OpenFile duplicate(OpenFile file) {
+        File end = (File) file;
+        assert (end.open);
+
+        Pipe pipe = end.getPipe();
+        return end.reading ? pipe.openForReading(end.blocking) :
+                pipe.openForWriting(end.blocking);
+    }
+
+    private class File extends OpenFile {
+        File(boolean reading, boolean blocking) {
+            this.reading = reading;
+            this.blocking = blocking;
+        }
+
+        Pipe getPipe() {
+            return Pipe.this;
+        }
+
+        public void close() {
+            if (!open)
+                return;
+
+            open = false;
+
+            lock.acquire();
+            if (reading) {
+                readers--;
+                notFull.wakeAll();
+            } else {
+                writers--;
+                notEmpty.wakeAll();
+            }
+            lock.release();
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (!open || !reading)
+                return -1;
+            if (length == 0)
+                return 0;
+
+            lock.acquire();
+
+            while (count == 0 && writers > 0) {
+                if (!blocking) {
+                    lock.release();
+                    return -1;
+                }
+
+                notEmpty.sleep();
+            }
+
+            int amount = Math.min(length, count);
+            for (int copied = 0; copied < amount; ) {
+                int chunk = Math.min(amount - copied, buffer.length - head);
+                System.arraycopy(buffer, head, buf, offset + copied, chunk);
+                head = (head + chunk) % buffer.length;
+                copied += chunk;
+            }
+            count -= amount;
+
+            if (amount > 0)
+                notFull.wakeAll();
+
+            lock.release();
+
+            return amount;
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (!open || reading)
+                return -1;
+
+            lock.acquire();
+
+            int written = 0;
+            while (written < length && readers > 0) {
+                if (count == buffer.length) {
+                    if (!blocking)
+                        break;
+
+                    notFull.sleep();
+                    continue;
+                }
+
+                int tail = (head + count) % buffer.length;
+                int chunk = Math.min(length - written,
+                        Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(buf, offset + written, buffer, tail, chunk);
+                count += chunk;
+                written += chunk;
+
+                notEmpty.wakeAll();
+            }
+
+            lock.release();
+
+            return (written == 0 && length > 0) ? -1 : written;
+        }
+
+        private boolean reading, blocking;
+        private boolean open = true;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        Pipe pipe = new Pipe(16);
+        final OpenFile in = pipe.openForReading(true);
+        final OpenFile out = pipe.openForWriting(true);
+        final byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        // a writer much larger than the pipe streams through it
+        KThread writer = new KThread(new Runnable() {
+            public void run() {
+                assert (out.write(data, 0, data.length) == data.length);
+                out.close();
+            }
+        });
+        writer.setName("pipe writer").fork();
+
+        byte[] received = new byte[data.length];
+        int total = 0, amount;
+        while ((amount = in.read(received, total, 7)) > 0)
+            total += amount;
+        writer.join();
+        assert (amount == 0 && total == data.length);
+        for (int i = 0; i < data.length; i++)
+            assert (received[i] == data[i]);
+
+        // non-blocking ends, and a write with no reader left
+        pipe = new Pipe(4);
+        OpenFile nbIn = pipe.openForReading(false);
+        OpenFile nbOut = pipe.openForWriting(false);
+        assert (nbIn.read(received, 0, 1) == -1);
+        assert (nbOut.write(data, 0, 6) == 4);
+        assert (nbOut.write(data, 0, 1) == -1);
+        OpenFile copy = duplicate(nbIn);
+        nbIn.close();
+        assert (copy.read(received, 0, 8) == 4);
+        copy.close();
+        assert (nbOut.write(data, 0, 1) == -1);
+        nbOut.close();
+    }
+
+    private byte[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private int readers = 0;
+    private int writers = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
@@ -0,0 +1,199 @@
+package nachos.userprog;
+
+import nachos.machine.CoffSection;
+import nachos.threads.Lock;
+
+import java.util.HashMap;
+
+/**
+ * A kernel-wide table of the read-only pages of executables being run. Each
+ * executable being run by some process has an image here, and pages of its
+ * read-only sections are loaded into frames held by the image the first time
+ * any of these processes faults on them. The other processes map those frames
+ * from then on, so running many copies of a program costs its code only once.
+ * <p/>
+ * <p/>
+ * Images are keyed by the executable returned by the <tt>CoffCache</tt>, so
+ * an executable that has changed, and been parsed again, gets a new image.
+ * An image is reference counted by the processes using it, and its frames are
+ * returned when the last one lets go.
+ */
+public class SharedText {
+    /**
+     * Allocate a new, empty shared text table.
+     *
+     * @param    allocator    the allocator to take frames from.
+     */
+    public SharedText(FrameAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Return the image of an executable, and count a new user of it. The
+     * caller must map the frames it needs with
+     * <tt>FrameAllocator.share()</tt>.
+     *
+     * @param    executable    the executable.
+     * @return the image.
+     */
+    public Image attach(CoffCache.Executable executable) {
+        lock.acquire();
+
+        Image image = images.get(executable);
+        if (image == null) {
+            image = new Image(executable);
+            images.put(executable, image);
+        }
+
+        image.users++;
+
+        lock.release();
+
+        return image;
+    }
+
+    /**
+     * Count another user of an image returned by <tt>attach()</tt>.
+     *
+     * @param    image    the image.
+     */
+    public void attach(Image image) {
+        lock.acquire();
+
+        assert (image.users > 0);
+        image.users++;
+
+        lock.release();
+    }
+
+    /**
+     * Drop a user of an image. When the last user is gone, the image is
+     * forgotten and the table's references to its frames are dropped.
+     *
+     * @param    image    the image.
+     */
+    public void detach(Image image) {
+        lock.acquire();
+
+        assert (image.users > 0);
+        if (--image.users == 0) {
+            images.remove(image.executable);
+            image.free();
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of executables with an image in the table.
+     *
+     * @return the number of images.
+     */
+    public int getNumImages() {
+        return images.size();
+    }
+
+    /**
+     * The frames holding the read-only pages of one executable that have
+     * been loaded.
+     */
+    public class Image {
+        Image(CoffCache.Executable executable) {
+            this.executable = executable;
+
+            int numPages = 0;
+            for (int s = 0; s < executable.getNumSections(); s++) {
+                CoffSection section = executable.getSection(s);
+                numPages = Math.max(numPages,
+                        section.getFirstVPN() + section.getLength());
+            }
+
+            frames = new int[numPages];
+            for (int vpn = 0; vpn < numPages; vpn++)
+                frames[vpn] = -1;
+        }
+
+        /**
+         * Return the frame holding a page of a read-only section, loading
+         * the page first if no process has used it yet. The caller must
+         * <tt>share()</tt> the frame before it can be freed. Loading holds
+         * only this image's lock, so faults on other executables do not wait
+         * for it.
+         *
+         * @param    vpn    the virtual page number.
+         * @return the physical page number, or -1 if the page could not be
+         * loaded.
+         */
+        public int getFrame(int vpn) {
+            CoffSection section = executable.findSection(vpn);
+            assert (section != null && section.isReadOnly());
+
+            loadLock.acquire();
+
+            if (frames[vpn] == -1) {
+                int ppn = allocator.allocate(this);
+                if (ppn != -1 && !executable.loadPage(vpn, ppn)) {
+                    allocator.free(ppn, this);
+                    ppn = -1;
+                }
+                frames[vpn] = ppn;
+            }
+
+            int ppn = frames[vpn];
+
+            loadLock.release();
+
+            return ppn;
+        }
+
+        private void free() {
+            for (int vpn = 0; vpn < frames.length; vpn++) {
+                if (frames[vpn] != -1) {
+                    allocator.free(frames[vpn], this);
+                    frames[vpn] = -1;
+                }
+            }
+        }
+
+        private CoffCache.Executable executable;
+        private int[] frames;
+        private int users = 0;
+        private Lock loadLock = new Lock();
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        FrameAllocator allocator = UserKernel.frameAllocator;
+        SharedText table = new SharedText(allocator);
+        int numFree = allocator.getNumFree();
+
+        CoffCache.Executable halt = UserKernel.coffCache.attach("halt.coff");
+        assert (halt != null);
+
+        // pages are loaded once, when first needed
+        Image image = table.attach(halt);
+        assert (allocator.getNumFree() == numFree);
+        int ppn = image.getFrame(0);
+        assert (ppn != -1 && allocator.getNumFree() == numFree - 1);
+        Image again = table.attach(halt);
+        assert (again == image);
+        assert (image.getFrame(0) == ppn);
+        assert (allocator.getNumFree() == numFree - 1);
+
+        // and freed by the last user
+        table.detach(image);
+        assert (table.getNumImages() == 1);
+        table.detach(image);
+        assert (table.getNumImages() == 0);
+        assert (allocator.getNumFree() == numFree);
+
+        UserKernel.coffCache.detach(halt);
+    }
+
+    private FrameAllocator allocator;
+    private HashMap<CoffCache.Executable, Image> images =
+            new HashMap<CoffCache.Executable, Image>();
+    private Lock lock = new Lock();
+}
@@ -25,8 +25,44 @@ public class UThread extends KThread {
         this.process = process;
     }
 
+    /**
+     * Allocate a new UThread that starts running user code at <i>pc</i>, with
+     * its own stack, rather than at the program's entry point.
+     *
+     * @param    process    the process the thread belongs to.
+     * @param    pc    the address of the first instruction to run.
+     * @param    sp    the initial stack pointer.
+     * @param    arg    the value for the first argument register.
+     */
+    public UThread(UserProcess process, int pc, int sp, int arg) {
+        this(process);
+
+        userRegisters[Processor.regPC] = pc;
+        userRegisters[Processor.regSP] = sp;
+        userRegisters[Processor.regA0] = arg;
+        stackTop = sp;
+        registersLoaded = true;
+    }
+
+    /**
+     * Allocate a new UThread that starts with the specified user registers,
+     * such as a copy of another thread's.
+     *
+     * @param    process    the process the thread belongs to.
+     * @param    registers    the initial values of the user registers.
+     */
+    public UThread(UserProcess process, int[] registers) {
+        this(process);
+
+        System.arraycopy(registers, 0, userRegisters, 0,
+                Processor.numUserRegisters);
+        registersLoaded = true;
+    }
+
     private void runProgram() {
-        process.initRegisters();
+        // otherwise the registers were loaded by restoreState()
+        if (!registersLoaded)
+            process.initRegisters();
         process.restoreState();
 
         Machine.processor().run();
@@ -35,25 +71,32 @@ public class UThread extends KThread {
     }
 
     /**
-     * Save state before giving up the processor to another thread.
+     * Save state before giving up the processor to another thread. The user
+     * registers are left in the processor, in case the next thread to run
+     * user code is this one again.
      */
     protected void saveState() {
         process.saveState();
 
-        for (int i = 0; i < Processor.numUserRegisters; i++)
-            userRegisters[i] = Machine.processor().readRegister(i);
-
         super.saveState();
     }
 
     /**
-     * Restore state before receiving the processor again.
+     * Restore state before receiving the processor again. The user registers
+     * are switched only if another thread's registers occupy the processor.
      */
     protected void restoreState() {
         super.restoreState();
 
-        for (int i = 0; i < Processor.numUserRegisters; i++)
-            Machine.processor().writeRegister(i, userRegisters[i]);
+        if (registerOwner != this) {
+            Processor processor = Machine.processor();
+
+            if (registerOwner != null)
+                processor.saveRegisters(registerOwner.userRegisters);
+            processor.restoreRegisters(userRegisters);
+
+            registerOwner = this;
+        }
 
         process.restoreState();
     }
@@ -64,8 +107,10 @@ public class UThread extends KThread {
      * <p/>
      * A thread capable of running user code actually has <i>two</i> sets of
      * CPU registers: one for its state while executing user code, and one for
-     * its state while executing kernel code. While this thread is not running,
-     * its user state is stored here.
+     * its state while executing kernel code. While another thread's user
+     * state is loaded in the processor, this thread's user state is stored
+     * here. Until then it stays in the processor, and this array is out of
+     * date.
      */
     public int userRegisters[] = new int[Processor.numUserRegisters];
 
@@ -73,4 +118,28 @@ public class UThread extends KThread {
      * The process this thread belongs to.
      */
     public UserProcess process;
+
+    /**
+     * This thread's ID within its process. The thread that runs the program's
+     * entry point has ID 0.
+     */
+    public int threadID = 0;
+
+    /**
+     * The top of the stack allocated to this thread by
+     * <tt>thread_create()</tt>, or -1 if it uses the process's main stack.
+     */
+    public int stackTop = -1;
+
+    /**
+     * The status this thread passed to <tt>thread_exit()</tt>.
+     */
+    public int exitStatus = 0;
+
+    private boolean registersLoaded = false;
+
+    /**
+     * The thread whose user registers are currently loaded in the processor.
+     */
+    private static UThread registerOwner = null;
 }
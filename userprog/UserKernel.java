@@ -1,8 +1,10 @@
 package nachos.userprog;
 
 import nachos.machine.Coff;
+import nachos.machine.Config;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
+import nachos.machine.Stats;
 import nachos.threads.KThread;
 import nachos.threads.ThreadedKernel;
 
@@ -18,13 +20,30 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, a frame
+     * allocator, a futex table, a COFF cache and a shared text table, and
+     * sets the processor's exception handler. The size of the COFF cache, in
+     * bytes, is given by the <tt>nachos.conf</tt> key
+     * <tt>UserKernel.coffCacheSize</tt>.
      */
     public void initialize(String[] args) {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
+        frameAllocator =
+                new FrameAllocator(Machine.processor().getNumPhysPages());
+        futexTable = new FutexTable();
+
+        int coffCacheSize = defaultCoffCacheSize;
+        if (Config.getString("UserKernel.coffCacheSize") != null)
+            coffCacheSize = Config.getInteger("UserKernel.coffCacheSize");
+        coffCache = new CoffCache(coffCacheSize);
+        Stats.addReporter(new Runnable() {
+            public void run() {
+                coffCache.print();
+            }
+        });
+        sharedText = new SharedText(frameAllocator);
 
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
@@ -34,11 +53,18 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test the frame allocator, the futex table, the COFF cache, the shared
+     * text table, pipes and the console device.
      */
     public void selfTest() {
         super.selfTest();
 
+        FrameAllocator.selfTest();
+        FutexTable.selfTest();
+        CoffCache.selfTest();
+        SharedText.selfTest();
+        Pipe.selfTest();
+
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
 
@@ -115,6 +141,23 @@ public class UserKernel extends ThreadedKernel {
      * Globally accessible reference to the synchronized console.
      */
     public static SynchConsole console;
+    /**
+     * Globally accessible reference to the physical frame allocator.
+     */
+    public static FrameAllocator frameAllocator;
+    /**
+     * Globally accessible reference to the futex table.
+     */
+    public static FutexTable futexTable;
+    /**
+     * Globally accessible reference to the cache of parsed executables.
+     */
+    public static CoffCache coffCache;
+    private static final int defaultCoffCacheSize = 64 * Processor.pageSize;
+    /**
+     * Globally accessible reference to the shared text table.
+     */
+    public static SharedText sharedText;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
@@ -1,9 +1,13 @@
 package nachos.userprog;
 
 import nachos.machine.*;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
 import nachos.threads.ThreadedKernel;
 
-import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -22,6 +26,10 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
+        processID = nextProcessID++;
+
+        fileTable[fdStandardInput] = UserKernel.console.openForReading();
+        fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
     }
 
     /**
@@ -47,7 +55,10 @@ public class UserProcess {
         if (!load(name, args))
             return false;
 
-        new UThread(this).setName(name).fork();
+        UThread thread = new UThread(this);
+        threads.put(new Integer(thread.threadID), thread);
+        numLiveThreads = 1;
+        thread.setName(name).fork();
 
         return true;
     }
@@ -61,10 +72,14 @@ public class UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Threads of the same process share its
+     * page table, so switching between them does not reload it.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        if (loadedPageTable != pageTable) {
+            Machine.processor().setPageTable(pageTable);
+            loadedPageTable = pageTable;
+        }
     }
 
     /**
@@ -84,13 +99,33 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
         assert (maxLength >= 0);
 
-        byte[] bytes = new byte[maxLength + 1];
+        byte[] memory = Machine.processor().getMemory();
+
+        // search for the null terminator in place, a page at a time
+        int length = 0;
+        while (length <= maxLength) {
+            int paddr = translate(vaddr + length, false);
+            if (paddr == -1)
+                return null;
 
-        int bytesRead = readVirtualMemory(vaddr, bytes);
+            int amount = Math.min(maxLength + 1 - length,
+                    pageSize - Processor.offsetFromAddress(paddr));
 
-        for (int length = 0; length < bytesRead; length++) {
-            if (bytes[length] == 0)
-                return new String(bytes, 0, length);
+            for (int i = 0; i < amount; i++) {
+                if (memory[paddr + i] != 0)
+                    continue;
+
+                // the common case: the string lies within one page
+                if (length == 0)
+                    return new String(memory, paddr, i);
+
+                byte[] bytes = new byte[length + i];
+                if (readVirtualMemory(vaddr, bytes) != bytes.length)
+                    return null;
+                return new String(bytes);
+            }
+
+            length += amount;
         }
 
         return null;
@@ -126,16 +161,7 @@ public class UserProcess {
                                  int length) {
         assert (offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
-
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
-
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(memory, vaddr, data, offset, amount);
-
-        return amount;
+        return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -169,23 +195,215 @@ public class UserProcess {
                                   int length) {
         assert (offset >= 0 && length >= 0 && offset + length <= data.length);
 
+        return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between this process's virtual memory and an array. Walks the
+     * page table a page at a time, and copies each run of pages that are
+     * contiguous in physical memory with a single <tt>arraycopy()</tt>. Stops
+     * at the first page that is not mapped, or, when writing, is read-only.
+     *
+     * @param    vaddr    the first byte of virtual memory to transfer.
+     * @param    data    the array to transfer to or from.
+     * @param    offset    the first byte of the array to transfer.
+     * @param    length    the number of bytes to transfer.
+     * @param    write    <tt>true</tt> to copy from the array to virtual
+     * memory, <tt>false</tt> to copy the other way.
+     * @return the number of bytes successfully transferred.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+                                  int length, boolean write) {
+        byte[] memory = Machine.processor().getMemory();
+
+        int transferred = 0;
+        while (transferred < length) {
+            int paddr = translate(vaddr + transferred, write);
+            if (paddr == -1)
+                break;
+
+            int amount = runLength(vaddr + transferred, paddr,
+                    length - transferred, write);
+
+            if (write)
+                System.arraycopy(data, offset + transferred, memory, paddr,
+                        amount);
+            else
+                System.arraycopy(memory, paddr, data, offset + transferred,
+                        amount);
+
+            transferred += amount;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Transfer data directly between a file and this process's virtual
+     * memory, without an intermediate buffer: the file reads into, or writes
+     * from, the processor's memory array at the translated addresses, one run
+     * of physically contiguous pages at a time. The whole range must be
+     * mapped, and, when reading from the file, writable.
+     *
+     * @param    file    the file to transfer to or from.
+     * @param    vaddr    the first byte of virtual memory to transfer.
+     * @param    length    the number of bytes to transfer.
+     * @param    fromFile    <tt>true</tt> to read from the file into virtual
+     * memory, <tt>false</tt> to write virtual memory to the file.
+     * @return the number of bytes transferred, or -1 if part of the range is
+     * not mapped, or if the file failed before any byte was transferred.
+     */
+    protected int transferFile(OpenFile file, int vaddr, int length,
+                               boolean fromFile) {
+        if (length < 0)
+            return -1;
+
+        // a read can block, so keep fork() from sharing the frames it fills
+        if (fromFile && !pinPages(vaddr, length, 1))
+            return -1;
+
+        int transferred = transferPinned(file, vaddr, length, fromFile);
+
+        if (fromFile)
+            pinPages(vaddr, length, -1);
+
+        return transferred;
+    }
+
+    private int transferPinned(OpenFile file, int vaddr, int length,
+                               boolean fromFile) {
+        // check the whole range before any I/O is done
+        if (!isMapped(vaddr, length, fromFile))
+            return -1;
+
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
+        int transferred = 0;
+        while (transferred < length) {
+            int paddr = translate(vaddr + transferred, fromFile);
+            int amount = runLength(vaddr + transferred, paddr,
+                    length - transferred, fromFile);
+
+            int result = fromFile ? file.read(memory, paddr, amount) :
+                    file.write(memory, paddr, amount);
+            if (result == -1)
+                return (transferred == 0) ? -1 : transferred;
+
+            transferred += result;
+            if (result < amount)
+                break;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Add <i>delta</i> to the pin count of each page of a range of virtual
+     * memory. <tt>fork()</tt> gives the child a copy of a pinned page instead
+     * of sharing its frame, so a transfer into the page that blocks cannot
+     * end up writing into a frame the child also uses.
+     *
+     * @param    vaddr    the first byte of the range.
+     * @param    length    the number of bytes in the range.
+     * @param    delta    1 to pin the pages, or -1 to unpin them.
+     * @return    <tt>true</tt> if the range lies within the page table.
+     */
+    private boolean pinPages(int vaddr, int length, int delta) {
+        if (length == 0)
+            return true;
+
+        int firstVPN = Processor.pageFromAddress(vaddr);
+        int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(data, offset, memory, vaddr, amount);
+        boolean intStatus = Machine.interrupt().disable();
+
+        // the page table only grows, so a range pinned stays within it
+        boolean inRange = vaddr >= 0 && firstVPN <= lastVPN &&
+                lastVPN < pageTable.length;
+        if (inRange) {
+            for (int vpn = firstVPN; vpn <= lastVPN; vpn++)
+                pinned[vpn] += delta;
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return inRange;
+    }
+
+    /**
+     * Test whether a range of this process's virtual memory is mapped, and,
+     * if <i>write</i> is set, writable. Pages not used yet are loaded.
+     *
+     * @param    vaddr    the first byte of the range.
+     * @param    length    the number of bytes in the range.
+     * @param    write    <tt>true</tt> if the range will be written.
+     * @return    <tt>true</tt> if every page of the range can be accessed.
+     */
+    protected boolean isMapped(int vaddr, int length, boolean write) {
+        int firstVPN = Processor.pageFromAddress(vaddr);
+        int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+        for (int vpn = firstVPN; length > 0 && vpn <= lastVPN; vpn++) {
+            if (translate(Math.max(vaddr, vpn * pageSize), write) == -1)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the length of the run of physically contiguous memory starting
+     * at <i>vaddr</i>, which translates to <i>paddr</i>, up to <i>length</i>
+     * bytes.
+     */
+    private int runLength(int vaddr, int paddr, int length, boolean write) {
+        int amount = Math.min(length,
+                pageSize - Processor.offsetFromAddress(paddr));
+
+        while (amount < length &&
+                translate(vaddr + amount, write) == paddr + amount)
+            amount += Math.min(length - amount, pageSize);
 
         return amount;
     }
 
+    /**
+     * Translate a virtual address of this process to a physical address, and
+     * mark the page used, and also dirty if it is being written.
+     *
+     * @param    vaddr    the virtual address.
+     * @param    write    <tt>true</tt> if the address is being written.
+     * @return the physical address, or -1 if the page is not mapped, or if
+     * <i>write</i> is set and it is read-only. A page that has not been used
+     * yet is loaded, and a copy-on-write page is copied, first.
+     */
+    protected int translate(int vaddr, boolean write) {
+        if (vaddr < 0)
+            return -1;
+
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (pageTable == null || vpn >= pageTable.length)
+            return -1;
+
+        TranslationEntry entry = pageTable[vpn];
+        if (!entry.valid && !handlePageFault(vpn))
+            return -1;
+        if (write && entry.readOnly && !breakCopyOnWrite(vpn))
+            return -1;
+
+        entry.used = true;
+        if (write)
+            entry.dirty = true;
+
+        return Processor.makeAddress(entry.ppn,
+                Processor.offsetFromAddress(vaddr));
+    }
+
     /**
      * Load the executable with the specified name into this process, and
-     * prepare to pass it the specified arguments. Opens the executable, reads
-     * its header information, and copies sections and arguments into this
-     * process's virtual memory.
+     * prepare to pass it the specified arguments. Looks the executable up in
+     * the COFF cache, which reads its header information if it has not been
+     * run recently, and copies the arguments into this process's virtual
+     * memory.
      *
      * @param    name    the name of the file containing the executable.
      * @param    args    the arguments to pass to the executable.
@@ -194,26 +412,18 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        executable = UserKernel.coffCache.attach(name);
         if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
-            return false;
-        }
-
-        try {
-            coff = new Coff(executable);
-        } catch (EOFException e) {
-            executable.close();
-            Lib.debug(dbgProcess, "\tcoff load failed");
+            Lib.debug(dbgProcess, "\topen or coff load failed");
             return false;
         }
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
-        for (int s = 0; s < coff.getNumSections(); s++) {
-            CoffSection section = coff.getSection(s);
+        for (int s = 0; s < executable.getNumSections(); s++) {
+            CoffSection section = executable.getSection(s);
             if (section.getFirstVPN() != numPages) {
-                coff.close();
+                UserKernel.coffCache.detach(executable);
                 Lib.debug(dbgProcess, "\tfragmented executable");
                 return false;
             }
@@ -229,13 +439,13 @@ public class UserProcess {
             argsSize += 4 + argv[i].length + 1;
         }
         if (argsSize > pageSize) {
-            coff.close();
+            UserKernel.coffCache.detach(executable);
             Lib.debug(dbgProcess, "\targuments too long");
             return false;
         }
 
         // program counter initially points at the program entry point
-        initialPC = coff.getEntryPoint();
+        initialPC = executable.getEntryPoint();
 
         // next comes the stack; stack pointer initially points to top of it
         numPages += stackPages;
@@ -269,47 +479,191 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Sets up the address space of this process, and attaches it to the
+     * shared image of its executable. Every page starts out invalid, and is
+     * loaded by <tt>handlePageFault()</tt> when it is first used. If this
+     * returns successfully, the process will definitely be run (this is the
+     * last step in process initialization that can fail).
      *
      * @return    <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
+        text = UserKernel.sharedText.attach(executable);
 
-        if (numPages > numPhysPages) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+        pageTable = new TranslationEntry[numPages];
+        copyOnWrite = new boolean[numPages];
+        pinned = new int[numPages];
+        for (int vpn = 0; vpn < numPages; vpn++)
+            pageTable[vpn] =
+                    new TranslationEntry(vpn, 0, false, false, false, false);
+
+        return true;
+    }
+
+    /**
+     * Bring a page that has not been used yet into memory. A page of a
+     * read-only section is mapped from the shared image, which loads it if
+     * no other process has. A page of any other section gets a frame of its
+     * own, loaded from the executable, or zero-filled if the section is not
+     * initialized. A page of the stack or the arguments gets a zero-filled
+     * frame.
+     *
+     * @param    vpn    the virtual page that faulted.
+     * @return    <tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     * it is outside the address space or there is not enough memory.
+     */
+    protected boolean handlePageFault(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length)
             return false;
+
+        // another thread of this process may be loading the same page
+        faultLock.acquire();
+
+        boolean valid = pageTable[vpn].valid || loadPage(vpn);
+
+        faultLock.release();
+
+        return valid;
+    }
+
+    private boolean loadPage(int vpn) {
+        Lib.debug(dbgProcess, "\tloading page " + vpn);
+
+        CoffSection section = executable.findSection(vpn);
+        boolean readOnly = (section != null && section.isReadOnly());
+        int ppn;
+
+        if (readOnly) {
+            ppn = text.getFrame(vpn);
+            if (ppn == -1)
+                return false;
+
+            UserKernel.frameAllocator.share(ppn, this);
+        } else {
+            ppn = UserKernel.frameAllocator.allocate(this);
+            if (ppn == -1)
+                return false;
+
+            if (section != null) {
+                if (!executable.loadPage(vpn, ppn)) {
+                    UserKernel.frameAllocator.free(ppn, this);
+                    return false;
+                }
+            } else {
+                byte[] memory = Machine.processor().getMemory();
+                Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize,
+                        (byte) 0);
+            }
         }
 
-        pageTable = new TranslationEntry[numPhysPages];
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+        // update the entry in place; allocateStack() may have copied it
+        TranslationEntry entry = pageTable[vpn];
+        entry.ppn = ppn;
+        entry.readOnly = readOnly;
+        entry.valid = true;
 
-        // load sections
-        for (int s = 0; s < coff.getNumSections(); s++) {
-            CoffSection section = coff.getSection(s);
+        return true;
+    }
+
+    /**
+     * Map the virtual pages <i>firstVPN</i> through <i>firstVPN + count -
+     * 1</i> of a page table to newly allocated, zero-filled frames, charged
+     * to this process. The page table must already have room for them.
+     *
+     * @param    table    the page table to fill in.
+     * @param    firstVPN    the first virtual page to map.
+     * @param    count    the number of pages to map.
+     * @return    <tt>true</tt> if all the pages were mapped. Otherwise some
+     * may have been, and their frames are still charged to this process.
+     */
+    protected boolean mapPages(TranslationEntry[] table, int firstVPN,
+                               int count) {
+        byte[] memory = Machine.processor().getMemory();
+
+        for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+            int ppn = UserKernel.frameAllocator.allocate(this);
+            if (ppn == -1)
+                return false;
+
+            Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize,
+                    (byte) 0);
+            table[vpn] =
+                    new TranslationEntry(vpn, ppn, true, false, false, false);
+        }
 
-            Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-                    + " section (" + section.getLength() + " pages)");
+        return true;
+    }
+
+    /**
+     * Drop this process's reference to the frame behind every mapped page,
+     * and mark the pages invalid.
+     */
+    protected void unmapPages() {
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+
+            if (entry != null && entry.valid) {
+                UserKernel.frameAllocator.free(entry.ppn, this);
+                entry.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Give a copy-on-write page a frame of its own, copying the frame it
+     * shares, and make it writable. If no other process shares the frame any
+     * more, it is kept without copying.
+     *
+     * @param    vpn    the virtual page to copy.
+     * @return    <tt>true</tt> if the page was copy-on-write and is now
+     * writable.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length || !copyOnWrite[vpn])
+            return false;
 
-            for (int i = 0; i < section.getLength(); i++) {
-                int vpn = section.getFirstVPN() + i;
+        boolean intStatus = Machine.interrupt().disable();
 
-                // for now, just assume virtual addresses=physical addresses
-                section.loadPage(i, vpn);
+        TranslationEntry entry = pageTable[vpn];
+        if (UserKernel.frameAllocator.getReferences(entry.ppn) > 1) {
+            int ppn = UserKernel.frameAllocator.allocate(this);
+            if (ppn == -1) {
+                Machine.interrupt().restore(intStatus);
+                return false;
             }
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize, memory,
+                    ppn * pageSize, pageSize);
+
+            UserKernel.frameAllocator.free(entry.ppn, this);
+            entry.ppn = ppn;
         }
 
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+
+        Machine.interrupt().restore(intStatus);
+
         return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>. Drops this
+     * process's reference to each of its frames, and its use of the shared
+     * text and the executable.
      */
     protected void unloadSections() {
+        unmapPages();
+
+        if (text != null) {
+            UserKernel.sharedText.detach(text);
+            text = null;
+        }
+        if (executable != null) {
+            UserKernel.coffCache.detach(executable);
+            executable = null;
+        }
     }
 
     /**
@@ -346,7 +700,18 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallFutexWait = 13,
+            syscallFutexWake = 14,
+            syscallThreadCreate = 15,
+            syscallThreadJoin = 16,
+            syscallThreadExit = 17,
+            syscallFork = 18,
+            syscallRingSetup = 19,
+            syscallSubmit = 20,
+            syscallReadv = 21,
+            syscallWritev = 22,
+            syscallPipe = 23;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -367,6 +732,24 @@ public class UserProcess {
      * </tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);
+     * </tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);
+     * </tt></td></tr>
+     * <tr><td>15</td><td><tt>int  thread_create(void (*func)(void *),
+     * void *arg);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  thread_join(int tid, int *status);
+     * </tt></td></tr>
+     * <tr><td>17</td><td><tt>void thread_exit(int status);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  ring_setup(struct ring *ring,
+     * int entries);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  syscall_submit(int count);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  readv(int fd, struct iovec *iov,
+     * int iovcnt);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  writev(int fd, struct iovec *iov,
+     * int iovcnt);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  pipe(int *fds, int flags);</tt></td></tr>
      * </table>
      *
      * @param    syscall    the syscall number.
@@ -381,12 +764,667 @@ public class UserProcess {
             case syscallHalt:
                 Machine.halt();
                 Lib.assertNotReached();
+                return 0;
+            case syscallCreate:
+                return handleOpen(a0, true);
+            case syscallOpen:
+                return handleOpen(a0, false);
+            case syscallRead:
+                return handleRead(a0, a1, a2);
+            case syscallWrite:
+                return handleWrite(a0, a1, a2);
+            case syscallClose:
+                return handleClose(a0);
+            case syscallUnlink:
+                return handleUnlink(a0);
+            case syscallFutexWait:
+                return handleFutexWait(a0, a1);
+            case syscallFutexWake:
+                return handleFutexWake(a0, a1);
+            case syscallThreadCreate:
+                return handleThreadCreate(a0, a1);
+            case syscallThreadJoin:
+                return handleThreadJoin(a0, a1);
+            case syscallThreadExit:
+                handleThreadExit(a0);
+                Lib.assertNotReached();
+                return 0;
+            case syscallFork:
+                return handleFork();
+            case syscallRingSetup:
+                return handleRingSetup(a0, a1);
+            case syscallSubmit:
+                return handleSubmit(a0);
+            case syscallReadv:
+                return handleVectoredIO(a0, a1, a2, true);
+            case syscallWritev:
+                return handleVectoredIO(a0, a1, a2, false);
+            case syscallPipe:
+                return handlePipe(a0, a1);
         }
         Lib.debug(dbgProcess, "Unknown syscall " + syscall);
         Lib.assertNotReached();
         return 0;
     }
 
+    /**
+     * Handle the <tt>creat()</tt> and <tt>open()</tt> syscalls.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+        String name = readVirtualMemoryString(nameAddr, maxNameLength);
+        if (name == null)
+            return -1;
+
+        int fd = 0;
+        while (fd < fileTable.length && fileTable[fd] != null)
+            fd++;
+        if (fd == fileTable.length)
+            return -1;
+
+        // writes through the file invalidate it; creating it may replace it
+        if (create)
+            UserKernel.coffCache.invalidate(name);
+
+        OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+        if (file == null)
+            return -1;
+
+        fileTable[fd] = file;
+        fileNames[fd] = name;
+        return fd;
+    }
+
+    /**
+     * Handle the <tt>read()</tt> syscall. The file reads straight into the
+     * caller's buffer.
+     */
+    private int handleRead(int fd, int bufferAddr, int count) {
+        OpenFile file = getFile(fd);
+        if (file == null)
+            return -1;
+
+        // a pipe must be read once, so that it returns what it has instead of
+        // blocking again for each run of pages
+        if (Pipe.isPipe(file)) {
+            if (count < 0 || !isMapped(bufferAddr, count, true))
+                return -1;
+
+            byte[] buffer = new byte[count];
+            int result = file.read(buffer, 0, count);
+            if (result > 0)
+                writeVirtualMemory(bufferAddr, buffer, 0, result);
+            return result;
+        }
+
+        return transferFile(file, bufferAddr, count, true);
+    }
+
+    /**
+     * Handle the <tt>write()</tt> syscall. The file writes straight from the
+     * caller's buffer.
+     */
+    private int handleWrite(int fd, int bufferAddr, int count) {
+        OpenFile file = getFile(fd);
+        if (file == null)
+            return -1;
+
+        writing(fd);
+
+        return transferFile(file, bufferAddr, count, false);
+    }
+
+    /**
+     * Handle the <tt>readv()</tt> and <tt>writev()</tt> syscalls. The buffers
+     * are scattered from, or gathered into, one kernel buffer, so the file
+     * sees a single read or write. Every buffer is checked before any I/O is
+     * done.
+     */
+    private int handleVectoredIO(int fd, int iovAddr, int iovcnt,
+                                 boolean read) {
+        OpenFile file = getFile(fd);
+        if (file == null || iovcnt < 0 || iovcnt > maxIovecs)
+            return -1;
+
+        byte[] iov = new byte[iovcnt * 8];
+        if (readVirtualMemory(iovAddr, iov) != iov.length)
+            return -1;
+
+        int[] bases = new int[iovcnt];
+        int[] lengths = new int[iovcnt];
+        int total = 0;
+        for (int i = 0; i < iovcnt; i++) {
+            bases[i] = Lib.bytesToInt(iov, i * 8);
+            lengths[i] = Lib.bytesToInt(iov, i * 8 + 4);
+
+            if (lengths[i] < 0 || lengths[i] > Integer.MAX_VALUE - total ||
+                    !isMapped(bases[i], lengths[i], read))
+                return -1;
+
+            total += lengths[i];
+        }
+
+        byte[] buffer = new byte[total];
+
+        if (!read) {
+            int offset = 0;
+            for (int i = 0; i < iovcnt; i++) {
+                readVirtualMemory(bases[i], buffer, offset, lengths[i]);
+                offset += lengths[i];
+            }
+
+            writing(fd);
+
+            return file.write(buffer, 0, total);
+        }
+
+        int result = file.read(buffer, 0, total);
+
+        int offset = 0;
+        for (int i = 0; i < iovcnt && offset < result; i++) {
+            int amount = Math.min(lengths[i], result - offset);
+            writeVirtualMemory(bases[i], buffer, offset, amount);
+            offset += amount;
+        }
+
+        return result;
+    }
+
+    /**
+     * Handle the <tt>close()</tt> syscall.
+     */
+    private int handleClose(int fd) {
+        OpenFile file = getFile(fd);
+        if (file == null)
+            return -1;
+
+        fileTable[fd] = null;
+        fileNames[fd] = null;
+        file.close();
+        return 0;
+    }
+
+    /**
+     * Note that the file open as <i>fd</i> is about to be written, so that
+     * it is not run from the executable cache any more.
+     */
+    private void writing(int fd) {
+        if (fileNames[fd] != null)
+            UserKernel.coffCache.invalidate(fileNames[fd]);
+    }
+
+    /**
+     * Handle the <tt>unlink()</tt> syscall.
+     */
+    private int handleUnlink(int nameAddr) {
+        String name = readVirtualMemoryString(nameAddr, maxNameLength);
+        if (name == null)
+            return -1;
+
+        UserKernel.coffCache.invalidate(name);
+
+        return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Handle the <tt>pipe()</tt> syscall. The read end goes in the lowest
+     * free file descriptor, and the write end in the next.
+     */
+    private int handlePipe(int fdsAddr, int flags) {
+        if (!isMapped(fdsAddr, 8, true))
+            return -1;
+
+        int[] fds = new int[2];
+        int fd = 0;
+        for (int i = 0; i < fds.length; i++) {
+            while (fd < fileTable.length && fileTable[fd] != null)
+                fd++;
+            if (fd == fileTable.length)
+                return -1;
+            fds[i] = fd++;
+        }
+
+        boolean blocking = (flags & pipeNonBlocking) == 0;
+        Pipe pipe = new Pipe(pipeCapacity);
+        fileTable[fds[0]] = pipe.openForReading(blocking);
+        fileTable[fds[1]] = pipe.openForWriting(blocking);
+
+        byte[] bytes = new byte[8];
+        Lib.bytesFromInt(bytes, 0, fds[0]);
+        Lib.bytesFromInt(bytes, 4, fds[1]);
+        writeVirtualMemory(fdsAddr, bytes);
+
+        return 0;
+    }
+
+    /**
+     * Close every file this process has open.
+     */
+    protected void closeFiles() {
+        for (int fd = 0; fd < fileTable.length; fd++) {
+            if (fileTable[fd] != null) {
+                fileTable[fd].close();
+                fileTable[fd] = null;
+                fileNames[fd] = null;
+            }
+        }
+    }
+
+    /**
+     * Return the file open as file descriptor <i>fd</i>.
+     *
+     * @param    fd    the file descriptor.
+     * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    protected OpenFile getFile(int fd) {
+        if (fd < 0 || fd >= fileTable.length)
+            return null;
+
+        return fileTable[fd];
+    }
+
+    /**
+     * Handle the <tt>futex_wait()</tt> syscall.
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+        int paddr = translateWord(vaddr);
+        if (paddr == -1)
+            return -1;
+
+        return UserKernel.futexTable.wait(paddr, expected) ? 0 : -1;
+    }
+
+    /**
+     * Handle the <tt>futex_wake()</tt> syscall.
+     */
+    private int handleFutexWake(int vaddr, int count) {
+        int paddr = translateWord(vaddr);
+        if (paddr == -1 || count < 0)
+            return -1;
+
+        return UserKernel.futexTable.wake(paddr, count);
+    }
+
+    /**
+     * Handle the <tt>thread_create()</tt> syscall. The new thread shares this
+     * process's address space, and gets a stack of its own.
+     */
+    private int handleThreadCreate(int func, int arg) {
+        threadLock.acquire();
+
+        int sp = allocateStack();
+        if (sp == -1) {
+            threadLock.release();
+            return -1;
+        }
+
+        UThread thread = new UThread(this, func, sp, arg);
+        thread.threadID = nextThreadID++;
+        threads.put(new Integer(thread.threadID), thread);
+        numLiveThreads++;
+
+        threadLock.release();
+
+        thread.setName(KThread.currentThread().getName() + " thread "
+                + thread.threadID).fork();
+
+        return thread.threadID;
+    }
+
+    /**
+     * Handle the <tt>thread_join()</tt> syscall. A thread can be joined only
+     * once, and not by itself.
+     */
+    private int handleThreadJoin(int threadID, int statusAddr) {
+        threadLock.acquire();
+        UThread thread = threads.get(new Integer(threadID));
+        if (thread == null || thread == KThread.currentThread()) {
+            threadLock.release();
+            return -1;
+        }
+        threads.remove(new Integer(threadID));
+        threadLock.release();
+
+        thread.join();
+
+        if (statusAddr != 0 &&
+                writeVirtualMemory(statusAddr,
+                        Lib.bytesFromInt(thread.exitStatus)) != 4)
+            return -1;
+
+        return 0;
+    }
+
+    /**
+     * Handle the <tt>thread_exit()</tt> syscall. The last thread to exit
+     * closes the process's files and releases its memory.
+     */
+    private void handleThreadExit(int status) {
+        UThread thread = (UThread) KThread.currentThread();
+        thread.exitStatus = status;
+
+        threadLock.acquire();
+        if (thread.stackTop != -1)
+            freeStack(thread.stackTop);
+        boolean last = (--numLiveThreads == 0);
+        threadLock.release();
+
+        if (last) {
+            closeFiles();
+            unloadSections();
+        }
+
+        KThread.finish();
+    }
+
+    /**
+     * Handle the <tt>fork()</tt> syscall. The child gets a copy of the
+     * calling thread, and shares all of this process's frames. Pages that are
+     * writable become copy-on-write in both processes, and are copied by the
+     * first process to write them. A page that a blocked read is still
+     * filling is copied for the child at once. The child inherits the ends
+     * of pipes open in this process; otherwise only the standard input and
+     * output are open in it.
+     */
+    private int handleFork() {
+        UserProcess child = newUserProcess();
+        child.executable = executable;
+        UserKernel.coffCache.attach(executable);
+
+        for (int fd = 0; fd < fileTable.length; fd++) {
+            if (fileTable[fd] != null && Pipe.isPipe(fileTable[fd])) {
+                if (child.fileTable[fd] != null)
+                    child.fileTable[fd].close();
+                child.fileTable[fd] = Pipe.duplicate(fileTable[fd]);
+            }
+        }
+        child.numPages = numPages;
+        child.initialPC = initialPC;
+        child.initialSP = initialSP;
+        child.text = text;
+        UserKernel.sharedText.attach(text);
+
+        // share every frame; nothing can be switched in while we do this
+        faultLock.acquire();
+        boolean intStatus = Machine.interrupt().disable();
+
+        child.pageTable = new TranslationEntry[pageTable.length];
+        child.copyOnWrite = new boolean[pageTable.length];
+        child.pinned = new int[pageTable.length];
+        boolean copied = true;
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+
+            if (!entry.valid) {
+                child.pageTable[vpn] =
+                        new TranslationEntry(vpn, 0, false, false, false,
+                                false);
+                continue;
+            }
+
+            // a blocked read is still filling this frame; copy it instead
+            if (pinned[vpn] > 0) {
+                int ppn = UserKernel.frameAllocator.allocate(child);
+                if (ppn == -1) {
+                    copied = false;
+                    break;
+                }
+
+                byte[] memory = Machine.processor().getMemory();
+                System.arraycopy(memory, entry.ppn * pageSize, memory,
+                        ppn * pageSize, pageSize);
+
+                boolean readOnly = entry.readOnly && !copyOnWrite[vpn];
+                child.pageTable[vpn] = new TranslationEntry(vpn, ppn, true,
+                        readOnly, false, false);
+                continue;
+            }
+
+            if (!entry.readOnly) {
+                entry.readOnly = true;
+                copyOnWrite[vpn] = true;
+            }
+
+            UserKernel.frameAllocator.share(entry.ppn, child);
+            child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true,
+                    true, false, false);
+            child.copyOnWrite[vpn] = copyOnWrite[vpn];
+        }
+
+        Machine.interrupt().restore(intStatus);
+        faultLock.release();
+
+        if (!copied) {
+            child.closeFiles();
+            child.unloadSections();
+            return -1;
+        }
+
+        // the child returns 0 from the syscall, at the next instruction
+        int[] registers = new int[Processor.numUserRegisters];
+        Machine.processor().saveRegisters(registers);
+        registers[Processor.regV0] = 0;
+        registers[Processor.regPC] = registers[Processor.regNextPC];
+
+        UThread thread = new UThread(child, registers);
+        thread.stackTop = ((UThread) KThread.currentThread()).stackTop;
+        child.threads.put(new Integer(thread.threadID), thread);
+        child.numLiveThreads = 1;
+        thread.setName(KThread.currentThread().getName() + " child "
+                + child.processID).fork();
+
+        return child.processID;
+    }
+
+    /**
+     * Handle the <tt>ring_setup()</tt> syscall. The queues are laid out as in
+     * <tt>struct ring</tt>, with room for <tt>RING_ENTRIES</tt> entries each,
+     * whatever number of them is used. Fails while syscalls from the current
+     * ring are still running.
+     */
+    private int handleRingSetup(int ringAddr, int entries) {
+        if (entries <= 0 || (entries & (entries - 1)) != 0 ||
+                entries > ringMaxEntries)
+            return -1;
+
+        if (ringAddr <= 0 || ringAddr % 4 != 0 ||
+                !isMapped(ringAddr, ringSize, true))
+            return -1;
+
+        ringLock.acquire();
+
+        if (ringPending > 0) {
+            ringLock.release();
+            return -1;
+        }
+
+        this.ringAddr = ringAddr;
+        ringEntries = entries;
+
+        ringLock.release();
+
+        return 0;
+    }
+
+    /**
+     * Handle the <tt>syscall_submit()</tt> syscall. Queued syscalls are run
+     * through the same handlers as if they had been trapped one at a time.
+     * The ring is read and written through virtual memory, so it may cross
+     * pages. The ring lock is released while each syscall runs, so that one
+     * that blocks does not hold up other threads of this process; a slot in
+     * the completion queue is reserved for it in the meantime.
+     */
+    private int handleSubmit(int count) {
+        ringLock.acquire();
+
+        if (ringAddr == 0) {
+            ringLock.release();
+            return -1;
+        }
+
+        int mask = ringEntries - 1;
+        byte[] header = new byte[ringHeaderSize];
+        byte[] sqe = new byte[sqeSize];
+        byte[] cqe = new byte[cqeSize];
+
+        int done = 0;
+        while (done < count) {
+            if (readVirtualMemory(ringAddr, header) != ringHeaderSize)
+                break;
+
+            int sqHead = Lib.bytesToInt(header, ringSqHead);
+            int sqTail = Lib.bytesToInt(header, ringSqTail);
+            int cqHead = Lib.bytesToInt(header, ringCqHead);
+            int cqTail = Lib.bytesToInt(header, ringCqTail);
+            if (sqHead == sqTail ||
+                    cqTail + ringPending - cqHead >= ringEntries)
+                break;
+
+            int sqeAddr = ringAddr + ringSqOffset + (sqHead & mask) * sqeSize;
+            if (readVirtualMemory(sqeAddr, sqe) != sqeSize)
+                break;
+
+            int opcode = Lib.bytesToInt(sqe, 0);
+            int fd = Lib.bytesToInt(sqe, 4);
+            int addr = Lib.bytesToInt(sqe, 8);
+            int len = Lib.bytesToInt(sqe, 12);
+            int userData = Lib.bytesToInt(sqe, 16);
+
+            // consume the entry before running it, so it is run only once
+            if (writeVirtualMemory(ringAddr + ringSqHead,
+                    Lib.bytesFromInt(sqHead + 1)) != 4)
+                break;
+
+            ringPending++;
+            ringLock.release();
+
+            int result = handleRingOp(opcode, fd, addr, len);
+
+            ringLock.acquire();
+            ringPending--;
+
+            // other threads may have posted completions in the meantime
+            if (readVirtualMemory(ringAddr + ringCqTail, header, 0, 4) != 4)
+                break;
+            cqTail = Lib.bytesToInt(header, 0);
+
+            Lib.bytesFromInt(cqe, 0, userData);
+            Lib.bytesFromInt(cqe, 4, result);
+            int cqeAddr = ringAddr + ringCqOffset + (cqTail & mask) * cqeSize;
+            if (writeVirtualMemory(cqeAddr, cqe) != cqeSize ||
+                    writeVirtualMemory(ringAddr + ringCqTail,
+                            Lib.bytesFromInt(cqTail + 1)) != 4)
+                break;
+
+            done++;
+        }
+
+        ringLock.release();
+
+        return done;
+    }
+
+    private int handleRingOp(int opcode, int fd, int addr, int len) {
+        switch (opcode) {
+            case ringOpNop:
+                return 0;
+            case ringOpCreat:
+                return handleOpen(addr, true);
+            case ringOpOpen:
+                return handleOpen(addr, false);
+            case ringOpRead:
+                return handleRead(fd, addr, len);
+            case ringOpWrite:
+                return handleWrite(fd, addr, len);
+            case ringOpClose:
+                return handleClose(fd);
+            case ringOpUnlink:
+                return handleUnlink(addr);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Find room for the stack of a new thread. Reuses the stack of an exited
+     * thread if there is one, and otherwise grows the address space by
+     * <tt>stackPages</tt> pages. Called with <tt>threadLock</tt> held, by a
+     * thread of this process.
+     *
+     * @return the initial stack pointer for the new thread, or -1 if there is
+     * not enough memory.
+     */
+    protected int allocateStack() {
+        if (!freeStacks.isEmpty())
+            return freeStacks.removeFirst();
+
+        // other threads keep using the old tables until the new pages are in
+        int firstVPN = pageTable.length;
+        TranslationEntry[] newPageTable =
+                new TranslationEntry[firstVPN + stackPages];
+
+        if (!mapPages(newPageTable, firstVPN, stackPages)) {
+            for (int vpn = firstVPN; vpn < newPageTable.length; vpn++) {
+                if (newPageTable[vpn] != null)
+                    UserKernel.frameAllocator.free(newPageTable[vpn].ppn, this);
+            }
+
+            return -1;
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        System.arraycopy(pageTable, 0, newPageTable, 0, firstVPN);
+        copyOnWrite = Arrays.copyOf(copyOnWrite, newPageTable.length);
+        pinned = Arrays.copyOf(pinned, newPageTable.length);
+        pageTable = newPageTable;
+
+        // the current thread belongs to this process; switch to the new table
+        restoreState();
+
+        Machine.interrupt().restore(intStatus);
+
+        return newPageTable.length * pageSize;
+    }
+
+    /**
+     * Make the stack of an exiting thread available to new threads. Called
+     * with <tt>threadLock</tt> held.
+     *
+     * @param    stackTop    the value returned by <tt>allocateStack()</tt>.
+     */
+    protected void freeStack(int stackTop) {
+        freeStacks.add(stackTop);
+    }
+
+    /**
+     * Translate the virtual address of a word-aligned word of this process's
+     * memory to a physical address. The page is made private first if it is
+     * copy-on-write, so that the word stays at this address when another
+     * thread writes to the page.
+     *
+     * @param    vaddr    the virtual address.
+     * @return the physical address, or -1 if <i>vaddr</i> is not aligned or
+     * not mapped.
+     */
+    protected int translateWord(int vaddr) {
+        if (vaddr % 4 != 0)
+            return -1;
+
+        return translate(vaddr, true);
+    }
+
+    /**
+     * End the current thread after an exception it cannot recover from, as if
+     * it had called <tt>thread_exit(-1)</tt>. Never returns.
+     *
+     * @param    cause    the user exception that occurred.
+     */
+    private void killThread(int cause) {
+        Lib.debug(dbgProcess, "Killing thread after exception: " +
+                Processor.exceptionNames[cause]);
+        handleThreadExit(-1);
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -399,6 +1437,25 @@ public class UserProcess {
         Processor processor = Machine.processor();
 
         switch (cause) {
+            case Processor.exceptionPageFault:
+                int badVPN = Processor.pageFromAddress(
+                        processor.readRegister(Processor.regBadVAddr));
+                if (handlePageFault(badVPN))
+                    break;
+
+                // an address outside the address space, or out of memory
+                killThread(cause);
+                break;
+
+            case Processor.exceptionReadOnly:
+                int vaddr = processor.readRegister(Processor.regBadVAddr);
+                if (breakCopyOnWrite(Processor.pageFromAddress(vaddr)))
+                    break;
+
+                // a write to a page that is really read-only
+                killThread(cause);
+                break;
+
             case Processor.exceptionSyscall:
                 int result = handleSyscall(processor.readRegister(Processor.regV0),
                         processor.readRegister(Processor.regA0),
@@ -420,12 +1477,26 @@ public class UserProcess {
     /**
      * The program being run by this process.
      */
-    protected Coff coff;
+    protected CoffCache.Executable executable;
+    /**
+     * The shared image of the program.
+     */
+    protected SharedText.Image text;
 
     /**
      * This process's page table.
      */
     protected TranslationEntry[] pageTable;
+    /**
+     * For each page in <tt>pageTable</tt>, <tt>true</tt> if it is marked
+     * read-only only because its frame is shared copy-on-write.
+     */
+    protected boolean[] copyOnWrite;
+    /**
+     * For each page in <tt>pageTable</tt>, the number of transfers from a
+     * file into it that are in progress.
+     */
+    protected int[] pinned;
     /**
      * The number of contiguous pages occupied by the program.
      */
@@ -436,9 +1507,89 @@ public class UserProcess {
      */
     protected final int stackPages = 8;
 
+    /**
+     * This process's open files, indexed by file descriptor.
+     */
+    protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+    /**
+     * The names of the files in <tt>fileTable</tt> opened by name, or
+     * <tt>null</tt> for the console and pipes.
+     */
+    protected String[] fileNames = new String[maxOpenFiles];
+
+    /**
+     * The maximum number of files a process can have open at once.
+     */
+    public static final int maxOpenFiles = 16;
+    /**
+     * The maximum length of a file name passed to a syscall.
+     */
+    public static final int maxNameLength = 256;
+    /**
+     * The maximum number of buffers passed to <tt>readv()</tt> or
+     * <tt>writev()</tt>.
+     */
+    public static final int maxIovecs = 16;
+    /**
+     * The number of bytes a pipe can hold.
+     */
+    public static final int pipeCapacity = 4 * Processor.pageSize;
+    /**
+     * The <tt>pipe()</tt> flag that makes both ends non-blocking.
+     */
+    public static final int pipeNonBlocking = 1;
+
+    private static final int fdStandardInput = 0, fdStandardOutput = 1;
+
+    /**
+     * This process's ID, unique among all processes.
+     */
+    protected int processID;
+    private static int nextProcessID = 0;
+
     private int initialPC, initialSP;
     private int argc, argv;
 
+    /**
+     * The threads of this process that can still be joined, by thread ID.
+     */
+    private HashMap<Integer, UThread> threads =
+            new HashMap<Integer, UThread>();
+    private int nextThreadID = 1;
+    private int numLiveThreads = 0;
+    private LinkedList<Integer> freeStacks = new LinkedList<Integer>();
+    private Lock threadLock = new Lock();
+    private Lock faultLock = new Lock();
+
+    private int ringAddr = 0;
+    private int ringEntries;
+    private int ringPending = 0;
+    private Lock ringLock = new Lock();
+
+    private static final int
+            ringSqHead = 0,
+            ringSqTail = 4,
+            ringCqHead = 8,
+            ringCqTail = 12,
+            ringHeaderSize = 16,
+            sqeSize = 20,
+            cqeSize = 8;
+    private static final int
+            ringMaxEntries = 32,
+            ringSqOffset = ringHeaderSize,
+            ringCqOffset = ringSqOffset + ringMaxEntries * sqeSize,
+            ringSize = ringCqOffset + ringMaxEntries * cqeSize;
+    private static final int
+            ringOpNop = 0,
+            ringOpCreat = 1,
+            ringOpOpen = 2,
+            ringOpRead = 3,
+            ringOpWrite = 4,
+            ringOpClose = 5,
+            ringOpUnlink = 6;
+
+    private static TranslationEntry[] loadedPageTable = null;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 }